@@ -1,23 +1,99 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 // GUI
 public class FileSorterGUI extends JFrame {
 
     private boolean separateByExtension = false;
-    private Map<String, java.util.List<String>> customCategories = new java.util.HashMap<>();
+    private boolean watchMode = false;
+    private boolean includeSubfolders = false;
+    private boolean detectByContent = false;
+    private DuplicateDetector.Action duplicateAction = null; // null keeps duplicates
+    private FileSorter.CollisionPolicy collisionPolicy = FileSorter.CollisionPolicy.RENAME;
+    // read by every run; the categories dialog swaps in a new version when it closes
+    private final AtomicReference<CategoryConfig> categoryConfig = new AtomicReference<>(CategoryConfig.defaults());
+    private static final Path CATEGORY_FILE =
+            Paths.get(System.getProperty("user.home"), ".smart-file-sorter", "categories.properties");
+    private String rulesText = "";
+    private volatile RuleEngine rules; // compiled rulesText, null when there are none
 
     private JTextField downloadsField;
     private JTextField targetField;
     private JTextField intervalField;
+    private JTextField workersField;
+    private JTextField unpackField;
 
-    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> autoSort; // interval auto-sort, null when off
+    private volatile FolderWatcher watcher; // also read by the shutdown hook
+    private final DirectoryCache directoryCache = new DirectoryCache(); // shared by all runs
+    private final SortLog log = new SortLog(System.out, SortLog.Level.INFO);
+    // runs every sort, undo and plan execution of this window, one at a time
+    private final SortCoordinator coordinator = new SortCoordinator(log);
+    private final ContentSniffer contentSniffer = new ContentSniffer(10_000); // verdicts cached across runs
+    private final Map<Path, DuplicateDetector> duplicateDetectors = new ConcurrentHashMap<>(); // one per target, shared by all runs
+    private final Map<Path, ArchiveExtractor> archiveExtractors = new ConcurrentHashMap<>(); // likewise
+
+    private JProgressBar progressBar;
+    private JLabel progressLabel;
+    private JLabel runStateLabel;
+    private volatile SortMetrics currentMetrics; // metrics of the latest run, polled for the progress bar
+    // outcomes remembered between auto-sort runs; read on the first run, not at startup
+    private final SortState sortState = new SortState(
+            Paths.get(System.getProperty("user.home"), ".smart-file-sorter", "state.log"), log);
+
+    // how long a new file's size must stay unchanged before watch mode moves it
+    private static final long WATCH_QUIET_MILLIS = 2000;
+    // shared by all jobs in the Jobs dialog: moves at once overall and per target disk
+    private static final int JOB_IO_BUDGET = 8;
+    private static final int JOB_IO_PER_DEVICE = 2;
+    private volatile JobScheduler jobScheduler; // created when the first job is added
+
+    // how deep "Include subfolders" descends below the source folder
+    private static final int SUBFOLDER_MAX_DEPTH = 16;
 
     public FileSorterGUI() {
         setTitle("Smart File Sorter (NIO + Popups)");
@@ -25,7 +101,7 @@ public class FileSorterGUI extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
         setLayout(new BorderLayout(8, 8));
-        initDefaultCategories();
+        loadCategories();
 
         JPanel topPanel = new JPanel(new GridLayout(2, 1, 5, 5));
 
@@ -50,25 +126,80 @@ public class FileSorterGUI extends JFrame {
 
         add(topPanel, BorderLayout.NORTH);
 
+        // Center panel: progress of the current / last run
+        JPanel progressPanel = new JPanel(new BorderLayout(5, 5));
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("Idle");
+        progressLabel = new JLabel(" ");
+        runStateLabel = new JLabel("Idle");
+        progressPanel.add(progressBar, BorderLayout.NORTH);
+        progressPanel.add(progressLabel, BorderLayout.CENTER);
+        progressPanel.add(runStateLabel, BorderLayout.EAST);
+        add(progressPanel, BorderLayout.CENTER);
+        new javax.swing.Timer(250, e -> refreshProgress()).start();
+
         // Bottom panel: controls
         JPanel controlPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
         JButton sortOnceButton = new JButton("Sort Now");
         JButton startAutoButton = new JButton("Start Auto");
         JButton stopAutoButton = new JButton("Stop Auto");
+        JButton undoButton = new JButton("Undo Last Run");
 
         controlPanel.add(sortOnceButton);
         controlPanel.add(startAutoButton);
         controlPanel.add(stopAutoButton);
+        controlPanel.add(undoButton);
 
         controlPanel.add(new JLabel("Every (min):"));
         intervalField = new JTextField("5", 4);
         controlPanel.add(intervalField);
 
+        controlPanel.add(new JLabel("Workers:"));
+        workersField = new JTextField("1", 3);
+        controlPanel.add(workersField);
+
         JButton customizeButton = new JButton("Customize Categories");
         JCheckBox separateCheck = new JCheckBox("Separate by extension");
+        JCheckBox watchCheck = new JCheckBox("Watch folder");
+        watchCheck.setToolTipText("Auto mode sorts new files as they arrive instead of rescanning every interval");
 
         controlPanel.add(customizeButton);
+        JButton rulesButton = new JButton("Rules");
+        controlPanel.add(rulesButton);
+        JButton jobsButton = new JButton("Jobs");
+        jobsButton.setToolTipText("Sort several source/target pairs on their own intervals");
+        controlPanel.add(jobsButton);
         controlPanel.add(separateCheck);
+        controlPanel.add(watchCheck);
+
+        JCheckBox subfoldersCheck = new JCheckBox("Include subfolders");
+        controlPanel.add(subfoldersCheck);
+
+        JCheckBox contentCheck = new JCheckBox("Detect type by content");
+        contentCheck.setToolTipText("Files with an unknown or missing extension are classified by their first bytes");
+        controlPanel.add(contentCheck);
+
+        controlPanel.add(new JLabel("If name exists:"));
+        JComboBox<String> collisionBox = new JComboBox<>(new String[]{"Rename", "Keep newer", "Skip", "Replace"});
+        collisionBox.setToolTipText("What to do when the target folder already has a file with the same name");
+        controlPanel.add(collisionBox);
+
+        controlPanel.add(new JLabel("Duplicates:"));
+        JComboBox<String> duplicatesBox = new JComboBox<>(new String[]{"Keep all", "Skip", "Hard link", "Quarantine"});
+        duplicatesBox.setToolTipText("What to do with files whose content is already in the target folder");
+        controlPanel.add(duplicatesBox);
+
+        controlPanel.add(new JLabel("Unpack:"));
+        unpackField = new JTextField(10);
+        unpackField.setToolTipText("Categories to unpack from sorted zip/tar archives, e.g. Documents, Images");
+        controlPanel.add(unpackField);
+
+        controlPanel.add(new JLabel("Log:"));
+        JComboBox<SortLog.Level> logLevelBox = new JComboBox<>(SortLog.Level.values());
+        logLevelBox.setSelectedItem(SortLog.Level.INFO);
+        logLevelBox.setToolTipText("Terminal output level; WARN shows only failures");
+        controlPanel.add(logLevelBox);
 
         add(controlPanel, BorderLayout.SOUTH);
 
@@ -76,9 +207,38 @@ public class FileSorterGUI extends JFrame {
         browseTarget.addActionListener(e -> chooseFolder(targetField));
 
         customizeButton.addActionListener(e -> openCategoryDialog());
+        rulesButton.addActionListener(e -> openRulesDialog());
+        jobsButton.addActionListener(e -> openJobsDialog());
         separateCheck.addActionListener(e -> separateByExtension = separateCheck.isSelected());
+        watchCheck.addActionListener(e -> watchMode = watchCheck.isSelected());
+        subfoldersCheck.addActionListener(e -> includeSubfolders = subfoldersCheck.isSelected());
+        contentCheck.addActionListener(e -> detectByContent = contentCheck.isSelected());
+        collisionBox.addActionListener(e ->
+                collisionPolicy = FileSorter.CollisionPolicy.values()[collisionBox.getSelectedIndex()]);
+        duplicatesBox.addActionListener(e -> {
+            int index = duplicatesBox.getSelectedIndex();
+            duplicateAction = index == 0 ? null : DuplicateDetector.Action.values()[index - 1];
+        });
+        logLevelBox.addActionListener(e -> log.setLevel((SortLog.Level) logLevelBox.getSelectedItem()));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            // sorts in progress stop between files, so no move is cut off
+            // and their journal runs are closed
+            FolderWatcher current = watcher;
+            if (current != null) {
+                try {
+                    current.close();
+                } catch (IOException ex) {
+                    log.warn("Failed to stop folder watcher: {}", ex.getMessage(), null);
+                }
+            }
+            coordinator.close();
+            JobScheduler scheduler = jobScheduler;
+            if (scheduler != null) scheduler.close(); // job runs in progress finish first
+            log.close();
+        }, "sort-shutdown"));
 
         sortOnceButton.addActionListener(this::handleSortOnce);
+        undoButton.addActionListener(this::handleUndo);
         startAutoButton.addActionListener(this::handleStartAuto);
         stopAutoButton.addActionListener(e -> stopAutoSort());
 
@@ -86,28 +246,336 @@ public class FileSorterGUI extends JFrame {
         setLocationRelativeTo(null);
     }
 
-    private void initDefaultCategories() {
-        if (!customCategories.isEmpty()) return; // do not override user changes
+    private void loadCategories() {
+        try {
+            categoryConfig.set(CategoryConfig.load(CATEGORY_FILE));
+        } catch (IOException | IllegalArgumentException e) {
+            log.warn("Could not read {}, using the default categories: {}", CATEGORY_FILE, e.getMessage());
+        }
+    }
 
-        customCategories.put("Documents", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "pdf", "doc", "docx", "txt", "xls", "xlsx", "ppt", "pptx", "csv", "odt", "rtf"
-        )));
-        customCategories.put("Images", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "jpg", "jpeg", "png", "gif", "bmp", "svg", "webp", "ico", "tiff", "raw"
-        )));
-        customCategories.put("Videos", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "mp4", "avi", "mkv", "mov", "wmv", "flv", "webm", "m4v", "mpg", "mpeg"
-        )));
-        customCategories.put("Audio", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "mp3", "wav", "flac", "aac", "m4a", "ogg", "wma", "opus"
-        )));
-        customCategories.put("Archives", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "zip", "rar", "7z", "tar", "gz", "bz2", "xz", "iso"
-        )));
-        customCategories.put("Programs", new java.util.ArrayList<>(java.util.Arrays.asList(
-                "exe", "msi", "apk", "deb", "rpm", "dmg", "pkg", "jar"
-        )));
-        customCategories.put("Others", new java.util.ArrayList<>());
+    // Publishes the edited categories as the next version and saves them.
+    // Runs already started keep the version they were created with.
+    private void commitCategories(Map<String, java.util.List<String>> draft) {
+        CategoryConfig current = categoryConfig.get();
+        if (draft.equals(current.categories())) return;
+        CategoryConfig next = current.withCategories(draft);
+        categoryConfig.set(next);
+        try {
+            next.save(CATEGORY_FILE);
+        } catch (IOException e) {
+            showError("Could not save the categories:\n" + e.getMessage());
+        }
+    }
+
+    // Plans a run with the current options and shows it as it grows. The
+    // table only asks the plan for the rows on screen, so huge folders are
+    // fine. "Execute Plan" moves exactly what is listed (files changed since
+    // planning are left alone) without listing the source again.
+    private void openPlanDialog() {
+        String source = downloadsField.getText().trim();
+        String target = targetField.getText().trim();
+        if (source.isEmpty() || target.isEmpty()) {
+            showError("Please select both source and target folders.");
+            return;
+        }
+        int workers = readWorkers();
+        if (workers < 1) return;
+
+        MovePlan plan = new MovePlan(Paths.get(target));
+        FileSorter planner = configuredSorter(source, target, 1, new SortMetrics());
+
+        JDialog dialog = new JDialog(this, "Preview (dry run)", false);
+        dialog.setSize(900, 450);
+        dialog.setLocationRelativeTo(this);
+        dialog.setLayout(new BorderLayout(10, 10));
+
+        String[] columns = {"File", "From", "To", "Size", "Why"};
+        Path sourceBase = Paths.get(source);
+        Path targetBase = Paths.get(target);
+        int[] shown = new int[1];
+        javax.swing.table.AbstractTableModel model = new javax.swing.table.AbstractTableModel() {
+            @Override
+            public int getRowCount() {
+                return shown[0];
+            }
+
+            @Override
+            public int getColumnCount() {
+                return columns.length;
+            }
+
+            @Override
+            public String getColumnName(int column) {
+                return columns[column];
+            }
+
+            @Override
+            public Object getValueAt(int row, int column) {
+                switch (column) {
+                    case 0: return plan.name(row);
+                    case 1: return sourceBase.relativize(plan.source(row).getParent()).toString();
+                    case 2: return targetBase.relativize(plan.targetDir(row)).toString();
+                    case 3: return plan.fileSize(row);
+                    default: return plan.reason(row);
+                }
+            }
+        };
+        JTable table = new JTable(model);
+        dialog.add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JPanel bottomPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 10, 5));
+        JLabel status = new JLabel("Planning...");
+        JButton executeBtn = new JButton("Execute Plan");
+        executeBtn.setEnabled(false);
+        bottomPanel.add(executeBtn);
+        bottomPanel.add(status);
+        dialog.add(bottomPanel, BorderLayout.SOUTH);
+
+        // add the rows planned since the last tick
+        javax.swing.Timer refresh = new javax.swing.Timer(250, null);
+        refresh.addActionListener(e -> {
+            boolean complete = plan.isComplete();
+            int size = plan.size();
+            if (size > shown[0]) {
+                int first = shown[0];
+                shown[0] = size;
+                model.fireTableRowsInserted(first, size - 1);
+            }
+            status.setText((complete ? "" : "Planning... ") + size + " file(s), "
+                    + String.format(Locale.ROOT, "%.1f MB", plan.totalBytes() / 1048576.0)
+                    + (complete ? ", nothing moved yet" : ""));
+            if (complete) {
+                refresh.stop();
+                executeBtn.setEnabled(size > 0);
+            }
+        });
+        refresh.start();
+
+        coordinator.read(() -> {
+            try {
+                planner.plan(plan, log);
+            } catch (Exception ex) {
+                plan.markComplete();
+                SwingUtilities.invokeLater(() -> showError("Planning failed:\n" + ex.getMessage()));
+            }
+        });
+
+        executeBtn.addActionListener(e -> {
+            executeBtn.setEnabled(false);
+            coordinator.submit(() -> newSorter(source, target, workers, false),
+                    sorter -> sorter.executePlan(plan, log), showResult("Plan executed.\nFiles in plan: "));
+        });
+        dialog.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                refresh.stop();
+                planner.cancel(); // stops the walk if it is still planning
+            }
+        });
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        dialog.setVisible(true);
+    }
+
+    // Jobs run with the options set in the main window when they were added,
+    // and share one scheduler and I/O budget.
+    private void openJobsDialog() {
+        JDialog dialog = new JDialog(this, "Jobs", false);
+        dialog.setSize(900, 300);
+        dialog.setLocationRelativeTo(this);
+        dialog.setLayout(new BorderLayout(10, 10));
+
+        String[] columns = {"Job", "Source", "Target", "Every (min)", "Status", "Runs", "Moved", "Failed", "Last run"};
+        javax.swing.table.AbstractTableModel model = new javax.swing.table.AbstractTableModel() {
+            java.util.List<SortJob> jobs = new java.util.ArrayList<>();
+
+            @Override
+            public int getRowCount() {
+                return jobs.size();
+            }
+
+            @Override
+            public int getColumnCount() {
+                return columns.length;
+            }
+
+            @Override
+            public String getColumnName(int column) {
+                return columns[column];
+            }
+
+            @Override
+            public Object getValueAt(int row, int column) {
+                SortJob job = jobs.get(row);
+                switch (column) {
+                    case 0: return job.name;
+                    case 1: return job.source;
+                    case 2: return job.target;
+                    case 3: return job.intervalMinutes;
+                    case 4: return job.running.get() ? "running" : "idle";
+                    case 5: return job.runs.get();
+                    case 6: return job.metrics.filesMoved.sum();
+                    case 7: return job.metrics.filesFailed.sum();
+                    default: return job.lastResult;
+                }
+            }
+
+            @Override
+            public void fireTableDataChanged() {
+                jobs = jobScheduler == null ? new java.util.ArrayList<>() : jobScheduler.jobs();
+                super.fireTableDataChanged();
+            }
+        };
+        JTable table = new JTable(model);
+        dialog.add(new JScrollPane(table), BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 5, 5));
+        JButton addBtn = new JButton("Add Job (current folders)");
+        JButton removeBtn = new JButton("Remove");
+        buttonPanel.add(addBtn);
+        buttonPanel.add(removeBtn);
+        buttonPanel.add(new JLabel("All jobs share " + JOB_IO_BUDGET + " moves at a time, "
+                + JOB_IO_PER_DEVICE + " per disk"));
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+
+        addBtn.addActionListener(e -> {
+            String source = downloadsField.getText().trim();
+            String target = targetField.getText().trim();
+            if (source.isEmpty() || target.isEmpty()) {
+                showError("Please select both source and target folders.");
+                return;
+            }
+            int workers = readWorkers();
+            if (workers < 1) return;
+            int minutes;
+            try {
+                minutes = Integer.parseInt(intervalField.getText().trim());
+                if (minutes <= 0) throw new NumberFormatException();
+            } catch (NumberFormatException ex) {
+                showError("Please enter a valid positive number for minutes.");
+                return;
+            }
+            String name = JOptionPane.showInputDialog(dialog, "Job name:", Paths.get(source).getFileName());
+            if (name == null || name.trim().isEmpty()) return;
+
+            if (jobScheduler == null) jobScheduler = new JobScheduler(new IoGate(JOB_IO_BUDGET, JOB_IO_PER_DEVICE), log);
+            SortMetrics metrics = new SortMetrics();
+            SortOptions options = new SortOptions();
+            try {
+                jobScheduler.schedule(new SortJob(name.trim(), source, target, minutes, metrics, () -> {
+                    FileSorter sorter = configuredSorter(options, source, target, workers, metrics);
+                    sorter.setState(sortState);
+                    return sorter;
+                }));
+            } catch (IllegalArgumentException ex) {
+                showError(ex.getMessage());
+                return;
+            }
+            model.fireTableDataChanged();
+        });
+        removeBtn.addActionListener(e -> {
+            int row = table.getSelectedRow();
+            if (row < 0 || jobScheduler == null) return;
+            jobScheduler.remove((String) model.getValueAt(row, 0));
+            model.fireTableDataChanged();
+        });
+
+        javax.swing.Timer refresh = new javax.swing.Timer(1000, e -> {
+            int selected = table.getSelectedRow();
+            model.fireTableDataChanged();
+            if (selected >= 0 && selected < table.getRowCount()) table.setRowSelectionInterval(selected, selected);
+        });
+        refresh.start();
+        dialog.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                refresh.stop();
+            }
+        });
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        model.fireTableDataChanged();
+        dialog.setVisible(true);
+    }
+
+    private void openRulesDialog() {
+        JDialog dialog = new JDialog(this, "Rules", true);
+        dialog.setSize(650, 400);
+        dialog.setLocationRelativeTo(this);
+        dialog.setLayout(new BorderLayout(10, 10));
+
+        dialog.add(new JLabel("<html>One rule per line, tried in order before the categories:"
+                + " <i>folder: conditions</i><br>e.g. <tt>Videos/Large: *.mp4 size&gt;1GB</tt>,"
+                + " <tt>Archive: age&gt;30d</tt>, <tt>Finance: invoice_*.pdf</tt>,"
+                + " <tt>Logs: re:app-\\d+\\.log</tt></html>"), BorderLayout.NORTH);
+        JTextArea rulesArea = new JTextArea(rulesText);
+        rulesArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        dialog.add(new JScrollPane(rulesArea), BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 5));
+        JButton explainBtn = new JButton("Explain (dry run)");
+        JButton saveBtn = new JButton("Save");
+        JButton cancelBtn = new JButton("Cancel");
+        buttonPanel.add(explainBtn);
+        buttonPanel.add(saveBtn);
+        buttonPanel.add(cancelBtn);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
+
+        saveBtn.addActionListener(e -> {
+            RuleEngine compiled = compileRules(rulesArea.getText());
+            if (compiled == null) return;
+            rulesText = rulesArea.getText();
+            rules = compiled.size() == 0 ? null : compiled;
+            dialog.dispose();
+        });
+        cancelBtn.addActionListener(e -> dialog.dispose());
+        explainBtn.addActionListener(e -> {
+            RuleEngine compiled = compileRules(rulesArea.getText());
+            if (compiled != null) explain(compiled);
+        });
+
+        dialog.setVisible(true);
+    }
+
+    // null (after showing the error) if a line does not parse
+    private RuleEngine compileRules(String text) {
+        try {
+            return RuleEngine.compile(Arrays.asList(text.split("\\R")));
+        } catch (IllegalArgumentException ex) {
+            showError(ex.getMessage());
+            return null;
+        }
+    }
+
+    // Lists where each file in the source folder would go with these rules.
+    private void explain(RuleEngine compiled) {
+        String source = downloadsField.getText().trim();
+        String target = targetField.getText().trim();
+        if (source.isEmpty() || target.isEmpty()) {
+            showError("Please select both source and target folders.");
+            return;
+        }
+        FileSorter sorter = new FileSorter(source, target, categoryConfig.get(), separateByExtension);
+        if (includeSubfolders) sorter.setMaxDepth(SUBFOLDER_MAX_DEPTH);
+        if (detectByContent) sorter.setContentSniffer(contentSniffer);
+        sorter.setRules(compiled);
+
+        coordinator.read(() -> {
+            StringBuilder report = new StringBuilder();
+            try {
+                int count = sorter.explain(line -> report.append(line).append('\n'));
+                report.append(count).append(" file(s), nothing moved\n");
+            } catch (IOException ex) {
+                report.append("Could not read ").append(source).append(": ").append(ex.getMessage());
+            }
+            SwingUtilities.invokeLater(() -> {
+                JTextArea area = new JTextArea(report.toString());
+                area.setEditable(false);
+                area.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+                JScrollPane pane = new JScrollPane(area);
+                pane.setPreferredSize(new Dimension(700, 400));
+                JOptionPane.showMessageDialog(this, pane, "Explain", JOptionPane.PLAIN_MESSAGE);
+            });
+        });
     }
 
     private void openCategoryDialog() {
@@ -116,8 +584,10 @@ public class FileSorterGUI extends JFrame {
         dialog.setLocationRelativeTo(this);
         dialog.setLayout(new BorderLayout(10, 10));
 
+        // edits go to a copy, published when the dialog closes or a run starts from it
+        Map<String, java.util.List<String>> draft = categoryConfig.get().draft();
         DefaultListModel<String> folderModel = new DefaultListModel<>();
-        for (String cat : customCategories.keySet()) {
+        for (String cat : draft.keySet()) {
             folderModel.addElement(cat);
         }
         JList<String> folderList = new JList<>(folderModel);
@@ -153,12 +623,14 @@ public class FileSorterGUI extends JFrame {
         JButton addExtBtn = new JButton("Add Ext");
         JButton removeExtBtn = new JButton("Del Ext");
         JButton sortNowBtn = new JButton("Sort Now (using this config)");
+        JButton previewBtn = new JButton("Preview (dry run)");
 
         extBtnPanel.add(new JLabel("Ext:"));
         extBtnPanel.add(extField);
         extBtnPanel.add(addExtBtn);
         extBtnPanel.add(removeExtBtn);
         extBtnPanel.add(sortNowBtn);
+        extBtnPanel.add(previewBtn);
 
         extPanel.add(extBtnPanel, BorderLayout.SOUTH);
 
@@ -169,7 +641,7 @@ public class FileSorterGUI extends JFrame {
             extModel.clear();
             if (selectedFolder == null) return;
 
-            java.util.List<String> list = customCategories.getOrDefault(
+            java.util.List<String> list = draft.getOrDefault(
                     selectedFolder, new java.util.ArrayList<>()
             );
             for (String ext : list) {
@@ -177,6 +649,11 @@ public class FileSorterGUI extends JFrame {
             }
         };
 
+        previewBtn.addActionListener(e -> {
+            commitCategories(draft);
+            openPlanDialog();
+        });
+
         if (!folderModel.isEmpty()) {
             folderList.setSelectedIndex(0);
             refreshExtList.run();
@@ -196,8 +673,8 @@ public class FileSorterGUI extends JFrame {
             name = name.trim();
             if (name.isEmpty()) return;
 
-            if (!customCategories.containsKey(name)) {
-                customCategories.put(name, new java.util.ArrayList<>());
+            if (!draft.containsKey(name)) {
+                draft.put(name, new java.util.ArrayList<>());
                 folderModel.addElement(name);
             }
         });
@@ -218,7 +695,7 @@ public class FileSorterGUI extends JFrame {
                     "Remove folder \"" + selectedFolder + "\"?",
                     "Confirm", JOptionPane.YES_NO_OPTION);
             if (confirm == JOptionPane.YES_OPTION) {
-                customCategories.remove(selectedFolder);
+                draft.remove(selectedFolder);
                 folderModel.removeElement(selectedFolder);
                 extModel.clear();
             }
@@ -243,14 +720,14 @@ public class FileSorterGUI extends JFrame {
             newName = newName.trim();
             if (newName.isEmpty()) return;
 
-            if (customCategories.containsKey(newName)) {
+            if (draft.containsKey(newName)) {
                 JOptionPane.showMessageDialog(dialog, "A folder with that name already exists.",
                         "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
 
-            java.util.List<String> exts = customCategories.remove(selectedFolder);
-            customCategories.put(newName, exts);
+            java.util.List<String> exts = draft.remove(selectedFolder);
+            draft.put(newName, exts);
 
             int idx = folderList.getSelectedIndex();
             folderModel.set(idx, newName);
@@ -274,10 +751,10 @@ public class FileSorterGUI extends JFrame {
             }
             if (ext.startsWith(".")) ext = ext.substring(1);
 
-            java.util.List<String> list = customCategories.get(folder);
+            java.util.List<String> list = draft.get(folder);
             if (list == null) {
                 list = new java.util.ArrayList<>();
-                customCategories.put(folder, list);
+                draft.put(folder, list);
             }
             if (!list.contains(ext)) {
                 list.add(ext);
@@ -293,7 +770,7 @@ public class FileSorterGUI extends JFrame {
                         "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
-            java.util.List<String> list = customCategories.get(folder);
+            java.util.List<String> list = draft.get(folder);
             if (list == null) return;
 
             java.util.List<String> selectedExts = extList.getSelectedValuesList();
@@ -318,27 +795,16 @@ public class FileSorterGUI extends JFrame {
                 return;
             }
 
-            // Run sorter in background
-            new Thread(() -> {
-                try {
-                    FileSorter sorter = new FileSorter(source, target, customCategories, separateByExtension);
-                    sorter.sortFiles(System.out::println);
-                    SwingUtilities.invokeLater(() ->
-                            JOptionPane.showMessageDialog(dialog,
-                                    "Sorting completed.\nCheck terminal for details.",
-                                    "Info", JOptionPane.INFORMATION_MESSAGE)
-                    );
-                } catch (Exception ex) {
-                    SwingUtilities.invokeLater(() ->
-                            JOptionPane.showMessageDialog(dialog,
-                                    "Sorting failed:\n" + ex.getMessage(),
-                                    "Error", JOptionPane.ERROR_MESSAGE)
-                    );
-                }
-            }).start();
+            int workers = readWorkers();
+            if (workers < 1) return;
+            commitCategories(draft);
+
+            coordinator.sort(source, target, false, () -> newSorter(source, target, workers, false),
+                    showResult("Sorting completed.\nTotal files found: "));
         });
 
         dialog.setVisible(true);
+        commitCategories(draft);
     }
 
     private void chooseFolder(JTextField targetField) {
@@ -358,30 +824,66 @@ public class FileSorterGUI extends JFrame {
             return;
         }
 
-        // sorting in a background thread 
-        new Thread(() -> {
-            try {
-                FileSorter sorter = new FileSorter(source, target, customCategories, separateByExtension);
-                int[] result = sorter.sortFiles(System.out::println);
-                final int totalFiles = result[0];
-                final int movedFiles = result[1];
-                SwingUtilities.invokeLater(() ->
-                        showInfo("Sorting completed.\nTotal files found: " + totalFiles + "\nFiles moved: " + movedFiles)
-                );
-            } catch (Exception ex) {
-                SwingUtilities.invokeLater(() ->
-                        showError("Sorting failed:\n" + ex.getMessage())
-                );
+        int workers = readWorkers();
+        if (workers < 1) return;
+
+        // runs after any work already queued, or together with a waiting sort of the same folders
+        coordinator.sort(source, target, false, () -> newSorter(source, target, workers, false),
+                showResult("Sorting completed.\nTotal files found: "));
+    }
+
+    // Pops up the outcome of a sort or plan execution once it has run.
+    private SortCoordinator.Listener showResult(String heading) {
+        return (result, failure) -> SwingUtilities.invokeLater(() -> {
+            if (failure instanceof CancellationException) {
+                showInfo("Stopped.\n" + failure.getMessage());
+            } else if (failure != null) {
+                showError("Sorting failed:\n" + failure.getMessage());
+            } else {
+                showInfo(heading + result[0] + "\nFiles moved: " + result[1]);
             }
-        }).start();
+        });
+    }
+
+    private void handleUndo(ActionEvent e) {
+        String target = targetField.getText().trim();
+        if (target.isEmpty()) {
+            showError("Please select the target folder.");
+            return;
+        }
+        int workers = readWorkers();
+        if (workers < 1) return;
+
+        int answer = JOptionPane.showConfirmDialog(this,
+                "Move the files of the last sort run on\n" + target + "\nback to where they came from?",
+                "Undo Last Run", JOptionPane.YES_NO_OPTION);
+        if (answer != JOptionPane.YES_OPTION) return;
+
+        // waits for runs in progress, which may still be writing that journal
+        coordinator.submit(null, sorter -> new MoveJournal(Paths.get(target), log).undoLast(workers, log),
+                (result, failure) -> SwingUtilities.invokeLater(() -> {
+                    if (failure != null) {
+                        showError("Undo failed:\n" + failure.getMessage());
+                    } else if (result[1] > 0) {
+                        showError("Undo finished with errors.\nFiles restored: " + result[0]
+                                + "\nFailed: " + result[1] + " (see the log)");
+                    } else {
+                        showInfo("Undo finished.\nFiles restored: " + result[0]);
+                    }
+                }));
     }
 
     private void handleStartAuto(ActionEvent e) {
-        if (scheduler != null && !scheduler.isShutdown()) {
+        if (autoSort != null || watcher != null) {
             showInfo("Auto-sort is already running.");
             return;
         }
 
+        if (watchMode) {
+            startWatching();
+            return;
+        }
+
         int minutes;
         try {
             minutes = Integer.parseInt(intervalField.getText().trim());
@@ -391,38 +893,215 @@ public class FileSorterGUI extends JFrame {
             return;
         }
 
-        scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(() -> {
-            try {
-                String currentSource = downloadsField.getText().trim();
-                String currentTarget = targetField.getText().trim();
+        int workers = readWorkers();
+        if (workers < 1) return;
 
-                if (currentSource.isEmpty() || currentTarget.isEmpty()) {
-                    System.err.println("Auto-sort skipped: source/target not set.");
-                    return;
-                }
+        // a tick while the previous auto-sort is still waiting joins it
+        autoSort = coordinator.every(minutes, () -> {
+            String currentSource = downloadsField.getText().trim();
+            String currentTarget = targetField.getText().trim();
 
-                FileSorter sorter = new FileSorter(currentSource, currentTarget, customCategories, separateByExtension);
-                int[] result = sorter.sortFiles(System.out::println);
-                System.out.println("Auto-sort run completed. Moved " + result[1] + " of " + result[0]);
-            } catch (Exception ex) {
-                System.err.println("Auto-sort run failed: " + ex.getMessage());
+            if (currentSource.isEmpty() || currentTarget.isEmpty()) {
+                log.warn("Auto-sort run failed: {}", "source/target not set", null);
+                return;
             }
-        }, 0, minutes, TimeUnit.MINUTES);
+            coordinator.sort(currentSource, currentTarget, true,
+                    () -> newSorter(currentSource, currentTarget, workers, true), (result, failure) -> {
+                if (failure == null) {
+                    log.info("Auto-sort run completed. Moved {} of {}", result[1], result[0]);
+                } else {
+                    log.warn("Auto-sort run failed: {}", failure.getMessage(), null);
+                }
+            });
+        });
 
         showInfo("Auto-sort started. Running every " + minutes + " minute(s).");
     }
 
+    private void startWatching() {
+        String source = downloadsField.getText().trim();
+        String target = targetField.getText().trim();
+
+        if (source.isEmpty() || target.isEmpty()) {
+            showError("Please select both source and target folders.");
+            return;
+        }
+
+        int workers = readWorkers();
+        if (workers < 1) return;
+
+        try {
+            watcher = new FolderWatcher(Paths.get(source), new WatchBatches(source, target, workers),
+                    WATCH_QUIET_MILLIS, log);
+            watcher.start();
+        } catch (IOException | InvalidPathException ex) {
+            watcher = null;
+            showError("Could not watch source folder:\n" + ex.getMessage());
+            return;
+        }
+
+        showInfo("Auto-sort started. Watching " + source + " for new files.");
+    }
+
+    // Hands each batch of new files to the coordinator as auto-sort work, so
+    // it never runs at the same time as another sort of this window.
+    private final class WatchBatches implements FolderWatcher.BatchSorter {
+        private final String source;
+        private final String target;
+        private final int workers;
+        private boolean stopped; // guarded by this
+
+        WatchBatches(String source, String target, int workers) {
+            this.source = source;
+            this.target = target;
+            this.workers = workers;
+        }
+
+        @Override
+        public void sort(java.util.List<Path> files) throws Exception {
+            CompletableFuture<Exception> done = new CompletableFuture<>();
+            synchronized (this) {
+                if (stopped) return;
+                coordinator.submitAuto(() -> newSorter(source, target, workers, true),
+                        sorter -> new int[]{files.size(), sorter.sortFiles(files, log)},
+                        (result, failure) -> done.complete(failure));
+            }
+            Exception failure = done.get();
+            if (failure != null && !(failure instanceof CancellationException)) throw failure;
+        }
+
+        @Override
+        public void stop() {
+            synchronized (this) {
+                stopped = true;
+            }
+            coordinator.stopAuto();
+        }
+    }
+
     private void stopAutoSort() {
-        if (scheduler != null) {
-            scheduler.shutdownNow();
-            scheduler = null;
-            showInfo("Auto-sort stopped.");
+        if (watcher != null) {
+            FolderWatcher stopping = watcher;
+            watcher = null;
+            // close() waits for the file being moved; not on the EDT
+            new SwingWorker<Void, Void>() {
+                @Override
+                protected Void doInBackground() throws IOException {
+                    stopping.close();
+                    return null;
+                }
+
+                @Override
+                protected void done() {
+                    try {
+                        get();
+                        showInfo("Auto-sort stopped.");
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException ex) {
+                        log.warn("Failed to stop folder watcher: {}", ex.getCause().getMessage(), null);
+                    }
+                }
+            }.execute();
+        } else if (autoSort != null) {
+            autoSort.cancel(false);
+            autoSort = null;
+            boolean busy = coordinator.stopAuto(); // the file being moved is finished first
+            showInfo(busy ? "Auto-sort stopped.\nThe current run stops after the files being moved."
+                    : "Auto-sort stopped.");
         } else {
             showInfo("Auto-sort is not running.");
         }
     }
 
+    // incremental runs (auto-sort) skip unchanged files that failed recently
+    // or were left in place
+    private FileSorter newSorter(String source, String target, int workers, boolean incremental) {
+        SortMetrics metrics = new SortMetrics();
+        FileSorter sorter = configuredSorter(source, target, workers, metrics);
+        currentMetrics = metrics;
+        if (incremental) sorter.setState(sortState);
+        return sorter;
+    }
+
+    // The main window's options at one moment; a job keeps the ones it was
+    // added with.
+    private final class SortOptions {
+        final CategoryConfig categories = categoryConfig.get();
+        final boolean separateByExtension = FileSorterGUI.this.separateByExtension;
+        final boolean includeSubfolders = FileSorterGUI.this.includeSubfolders;
+        final boolean detectByContent = FileSorterGUI.this.detectByContent;
+        final FileSorter.CollisionPolicy collisionPolicy = FileSorterGUI.this.collisionPolicy;
+        final DuplicateDetector.Action duplicateAction = FileSorterGUI.this.duplicateAction;
+        final RuleEngine rules = FileSorterGUI.this.rules;
+        final String unpack = unpackField.getText().trim();
+    }
+
+    // A sorter with the current options, for the main window.
+    private FileSorter configuredSorter(String source, String target, int workers, SortMetrics metrics) {
+        return configuredSorter(new SortOptions(), source, target, workers, metrics);
+    }
+
+    private FileSorter configuredSorter(SortOptions options, String source, String target, int workers,
+                                        SortMetrics metrics) {
+        FileSorter sorter = new FileSorter(source, target, options.categories, options.separateByExtension);
+        sorter.setMetrics(metrics);
+        sorter.setConcurrency(workers);
+        sorter.setDirectoryCache(directoryCache);
+        if (options.includeSubfolders) sorter.setMaxDepth(SUBFOLDER_MAX_DEPTH);
+        if (options.detectByContent) sorter.setContentSniffer(contentSniffer);
+        sorter.setCollisionPolicy(options.collisionPolicy);
+        sorter.setJournal(new MoveJournal(Paths.get(target), log));
+        if (options.duplicateAction != null) {
+            sorter.setDuplicateDetector(duplicateDetectors.computeIfAbsent(Paths.get(target).toAbsolutePath().normalize(),
+                    dir -> new DuplicateDetector(dir, log)), options.duplicateAction);
+        }
+        if (options.rules != null) sorter.setRules(options.rules);
+        String unpack = options.unpack;
+        if (!unpack.isEmpty()) {
+            sorter.setArchiveExtractor(archiveExtractors.computeIfAbsent(Paths.get(target).toAbsolutePath().normalize(),
+                    ArchiveExtractor::new), java.util.Arrays.asList(unpack.split(",")));
+        }
+        return sorter;
+    }
+
+    // returns -1 (after showing an error) if the field is not a positive integer
+    private int readWorkers() {
+        try {
+            int workers = Integer.parseInt(workersField.getText().trim());
+            if (workers <= 0) throw new NumberFormatException();
+            return workers;
+        } catch (NumberFormatException ex) {
+            showError("Invalid worker count. Enter a positive integer.");
+            return -1;
+        }
+    }
+
+    // Called on the EDT by a Swing timer.
+    private void refreshProgress() {
+        switch (coordinator.state()) {
+            case RUNNING: runStateLabel.setText("Running"); break;
+            case QUEUED: runStateLabel.setText("Running, more queued"); break;
+            default: runStateLabel.setText("Idle");
+        }
+        SortMetrics metrics = currentMetrics;
+        if (metrics == null) return;
+
+        long found = metrics.filesFound.sum();
+        long done = metrics.filesDone();
+        progressBar.setMaximum((int) Math.min(Math.max(found, 1), Integer.MAX_VALUE));
+        progressBar.setValue((int) Math.min(done, Integer.MAX_VALUE));
+
+        if (metrics.isFinished()) {
+            progressBar.setString("Done: " + done + " / " + found);
+            progressLabel.setText(String.format("Last run: %s in %.1f s", metrics.summary(), metrics.elapsedSeconds()));
+        } else {
+            double eta = metrics.etaSeconds();
+            progressBar.setString(done + " / " + found);
+            progressLabel.setText(metrics.summary() + (eta >= 0 ? String.format(", ETA %.0f s", eta) : ""));
+        }
+    }
+
     private void showInfo(String msg) {
         JOptionPane.showMessageDialog(
                 this,
@@ -442,116 +1121,5100 @@ public class FileSorterGUI extends JFrame {
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            // FileSorterCLI is the faster entry point; this one still links Swing
+            System.setProperty("java.awt.headless", "true");
+            FileSorterCLI.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         SwingUtilities.invokeLater(() -> new FileSorterGUI().setVisible(true));
     }
 }
 
-// main
-class FileSorter {
-    private final Path downloadsPath;
-    private final Path targetBasePath;
-    private final Map<String, java.util.List<String>> categories = new java.util.HashMap<>();
-    private final Map<String, Integer> stats = new java.util.HashMap<>();
-    private final boolean separateByExtension;
+// Headless entry point: sorts without loading AWT/Swing, for servers and cron.
+//   java FileSorterCLI --source ~/Downloads --target ~/SortedFiles
+//   java FileSorterCLI --config sorter.properties --daemon --interval 5
+// Options can also come from a properties file (--config); command-line
+// options override it. Categories are "category.<Name>=ext,ext,..." entries;
+// without any, the built-in categories are used. "job.<name>.<option>"
+// entries turn the run into several jobs sharing one scheduler.
+class FileSorterCLI {
+    private static final String USAGE = String.join("\n",
+            "Usage: java FileSorterCLI [options]",
+            "  --source DIR              folder to sort",
+            "  --target DIR              folder to sort into",
+            "  --config FILE             properties file with any of the options below",
+            "                            (source, target, workers, ...) and category.<Name>=ext,ext;",
+            "                            job.<name>.<option>=... entries define several jobs",
+            "                            (e.g. job.alice.source, job.alice.target, job.alice.rules)",
+            "  --separate-by-extension   put files in <category>/<ext>/ subfolders",
+            "  --workers N               files moved at the same time (default 1)",
+            "  --max-depth N             also sort subfolders, N levels deep (default 0)",
+            "  --bandwidth BYTES         cap cross-device copies at BYTES per second",
+            "  --detect-content          classify files with unknown extensions by their first bytes",
+            "  --on-collision POLICY     when the target name is taken: rename (default, adds \" (1)\"),",
+            "                            keep-newer, skip or replace",
+            "  --duplicates ACTION       skip, hardlink or quarantine files whose content is",
+            "                            already in the target folder (default: sort them anyway)",
+            "  --unpack CATEGORIES       also unpack members of these categories from sorted zip/tar",
+            "                            archives into their folders, e.g. Documents,Images",
+            "  --rules FILE              rules tried before the categories, one per line, e.g.",
+            "                            Videos/Large: *.mp4 size>1GB   |   Archive: age>30d",
+            "  --explain                 print where each file would go and why, move nothing",
+            "  --plan FILE               save where each file would go to FILE, move nothing",
+            "  --execute-plan FILE       move the files of a saved plan (same --source/--target);",
+            "                            files changed since planning are left alone",
+            "  --no-journal              do not record moves in <target>/.sorter-journal",
+            "  --undo                    move the files of the last run on --target back, then exit",
+            "  --io-budget N             with jobs: moves at once across all jobs (default 8)",
+            "  --io-per-device N         with jobs: moves at once per target disk (default 2)",
+            "  --daemon                  keep running; sort every --interval minutes or on --watch events",
+            "  --interval MIN            minutes between daemon runs (default 5)",
+            "  --watch                   daemon sorts new files as they arrive",
+            "  --state FILE              remember failed and left-in-place files between daemon runs",
+            "                            (default ~/.smart-file-sorter/state.log)",
+            "  --log-level LEVEL         DEBUG, INFO (default), WARN, ERROR or OFF",
+            "  --log-file FILE           also write JSON lines to FILE, rotated by size",
+            "  --log-file-max-bytes N    rotate the log file at N bytes (default 10485760)",
+            "  --log-files N             rotated log files to keep (default 5)",
+            "  --metrics-file FILE       write Prometheus-format metrics to FILE after a run",
+            "                            (every 15 s in daemon mode)",
+            "  --help                    show this help");
 
-    public FileSorter(String downloadsPath,
-                      String targetBasePath,
-                      Map<String, java.util.List<String>> customCategories,
-                      boolean separateByExtension) {
-        this.downloadsPath = Paths.get(downloadsPath);
-        this.targetBasePath = Paths.get(targetBasePath);
-        this.separateByExtension = separateByExtension;
-        initializeCategories(customCategories);
+    public static void main(String[] args) {
+        Properties options;
+        try {
+            options = parseArgs(args);
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.containsKey("help")) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        SortLog log;
+        try {
+            log = newLog(options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+
+        int exitCode = 0;
+        try {
+            if (Boolean.parseBoolean(options.getProperty("undo"))) {
+                int[] result = new MoveJournal(Paths.get(required(options, "target")), log)
+                        .undoLast(intOption(options, "workers", 1), log);
+                if (result[1] > 0) exitCode = 1;
+            } else if (!jobOptions(options).isEmpty()) {
+                runJobs(options, jobOptions(options), log);
+            } else if (Boolean.parseBoolean(options.getProperty("explain"))) {
+                int count = newSorter(options, null, new SortMetrics(), log).explain(System.out::println);
+                System.out.println(count + " file(s), nothing moved");
+            } else if (options.getProperty("plan") != null) {
+                MovePlan plan = new MovePlan(Paths.get(required(options, "target")));
+                newSorter(options, null, new SortMetrics(), log).plan(plan, log);
+                plan.save(Paths.get(options.getProperty("plan")));
+                log.info("Planned {} file(s), {} bytes; nothing moved", plan.size(), plan.totalBytes());
+            } else if (options.getProperty("executePlan") != null) {
+                MovePlan plan = MovePlan.load(Paths.get(options.getProperty("executePlan")));
+                SortMetrics metrics = new SortMetrics();
+                int[] result = newSorter(options, null, metrics, log).executePlan(plan, log);
+                log.info("Plan executed. Files in plan: {}, files moved: {}", result[0], result[1]);
+                log.info("Metrics: {}", metrics.summary(), null);
+                writeMetrics(options, metrics.toPrometheus(), log);
+            } else if (Boolean.parseBoolean(options.getProperty("daemon"))) {
+                runDaemon(options, log);
+            } else {
+                SortMetrics metrics = new SortMetrics();
+                int[] result = newSorter(options, null, metrics, log).sortFiles(log);
+                log.info("Sorting completed. Total files found: {}, files moved: {}", result[0], result[1]);
+                log.info("Metrics: {}", metrics.summary(), null);
+                writeMetrics(options, metrics.toPrometheus(), log);
+            }
+        } catch (IllegalArgumentException e) {
+            log.log(SortLog.Level.ERROR, e.getMessage(), null, null);
+            exitCode = 2;
+        } catch (Exception e) {
+            log.log(SortLog.Level.ERROR, "Sorting failed: {}", e.getMessage(), null);
+            exitCode = 1;
+        }
+        log.close();
+        if (exitCode != 0) System.exit(exitCode);
     }
 
-    public FileSorter(String downloadsPath, String targetBasePath) {
-        this(downloadsPath, targetBasePath, null, false);
+    static SortLog newLog(Properties options) {
+        SortLog.Level level;
+        try {
+            level = SortLog.Level.valueOf(options.getProperty("logLevel", "INFO").trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for logLevel: " + options.getProperty("logLevel"));
+        }
+        String file = options.getProperty("logFile");
+        Path jsonFile = file == null || file.trim().isEmpty() ? null : Paths.get(file.trim());
+        return new SortLog(System.out, level, 8192, jsonFile,
+                longOption(options, "logFileMaxBytes", 10L * 1024 * 1024),
+                intOption(options, "logFiles", 5));
     }
 
-    private void initializeCategories(Map<String, java.util.List<String>> customCategories) {
-        categories.clear();
-        if (customCategories != null && !customCategories.isEmpty()) {
-            for (Map.Entry<String, java.util.List<String>> e : customCategories.entrySet()) {
-                categories.put(e.getKey(), new java.util.ArrayList<>(e.getValue()));
+    // Command-line flags become properties with the same names as the config file keys.
+    static Properties parseArgs(String[] args) throws IOException {
+        Properties cli = new Properties();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "--help": case "-h": cli.setProperty("help", "true"); break;
+                case "--separate-by-extension": cli.setProperty("separateByExtension", "true"); break;
+                case "--daemon": cli.setProperty("daemon", "true"); break;
+                case "--watch": cli.setProperty("watch", "true"); break;
+                case "--detect-content": cli.setProperty("detectContent", "true"); break;
+                case "--no-journal": cli.setProperty("journal", "false"); break;
+                case "--undo": cli.setProperty("undo", "true"); break;
+                case "--explain": cli.setProperty("explain", "true"); break;
+                case "--plan": cli.setProperty("plan", value(args, ++i, arg)); break;
+                case "--execute-plan": cli.setProperty("executePlan", value(args, ++i, arg)); break;
+                case "--rules": cli.setProperty("rules", value(args, ++i, arg)); break;
+                case "--io-budget": cli.setProperty("ioBudget", value(args, ++i, arg)); break;
+                case "--io-per-device": cli.setProperty("ioPerDevice", value(args, ++i, arg)); break;
+                case "--source": cli.setProperty("source", value(args, ++i, arg)); break;
+                case "--target": cli.setProperty("target", value(args, ++i, arg)); break;
+                case "--config": cli.setProperty("config", value(args, ++i, arg)); break;
+                case "--workers": cli.setProperty("workers", value(args, ++i, arg)); break;
+                case "--max-depth": cli.setProperty("maxDepth", value(args, ++i, arg)); break;
+                case "--bandwidth": cli.setProperty("bandwidth", value(args, ++i, arg)); break;
+                case "--interval": cli.setProperty("interval", value(args, ++i, arg)); break;
+                case "--state": cli.setProperty("state", value(args, ++i, arg)); break;
+                case "--log-level": cli.setProperty("logLevel", value(args, ++i, arg)); break;
+                case "--log-file": cli.setProperty("logFile", value(args, ++i, arg)); break;
+                case "--log-file-max-bytes": cli.setProperty("logFileMaxBytes", value(args, ++i, arg)); break;
+                case "--log-files": cli.setProperty("logFiles", value(args, ++i, arg)); break;
+                case "--metrics-file": cli.setProperty("metricsFile", value(args, ++i, arg)); break;
+                case "--duplicates": cli.setProperty("duplicates", value(args, ++i, arg)); break;
+                case "--unpack": cli.setProperty("unpack", value(args, ++i, arg)); break;
+                case "--on-collision": cli.setProperty("onCollision", value(args, ++i, arg)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + arg);
             }
         }
 
-        categories.putIfAbsent("Others", new java.util.ArrayList<>());
-
-        // reset stats
-        stats.clear();
-        for (String cat : categories.keySet()) {
-            stats.put(cat, 0);
+        Properties options = new Properties();
+        String config = cli.getProperty("config");
+        if (config != null) {
+            try (Reader in = Files.newBufferedReader(Paths.get(config), StandardCharsets.UTF_8)) {
+                options.load(in);
+            } catch (IOException e) {
+                throw new IOException("Cannot read config file " + config + ": " + e.getMessage(), e);
+            }
         }
+        options.putAll(cli);
+        return options;
     }
 
-
-    private String getFileExtension(String filename) {
-        if (filename == null) return null;
-        int dotIndex = filename.lastIndexOf('.');
-        if (dotIndex == -1 || dotIndex == filename.length() - 1) return null;
-        return filename.substring(dotIndex + 1).toLowerCase();
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[i];
     }
 
-    private String getCategoryForFile(String filename) {
-        String ext = getFileExtension(filename);
-        if (ext == null) return "Others";
+    private static ContentSniffer contentSniffer; // shared by all daemon runs
+    private static final Map<Path, DuplicateDetector> duplicateDetectors = new ConcurrentHashMap<>(); // one per target
+    private static final Map<Path, ArchiveExtractor> archiveExtractors = new ConcurrentHashMap<>(); // one per target
 
-        for (Map.Entry<String, java.util.List<String>> entry : categories.entrySet()) {
-            String category = entry.getKey();
-            java.util.List<String> exts = entry.getValue();
+    static FileSorter newSorter(Properties options, SortState state, SortMetrics metrics, SortLog log) {
+        String source = required(options, "source");
+        String target = required(options, "target");
 
-            if (exts != null && exts.contains(ext)) {
-                return category;
+        CategoryConfig categories = CategoryConfig.fromProperties(options);
+        if (categories == null) categories = CategoryConfig.defaults();
+
+        FileSorter sorter = new FileSorter(source, target, categories,
+                Boolean.parseBoolean(options.getProperty("separateByExtension")));
+        sorter.setConcurrency(intOption(options, "workers", 1));
+        sorter.setMaxDepth(intOption(options, "maxDepth", 0));
+        sorter.setBandwidthLimit(longOption(options, "bandwidth", 0));
+        if (Boolean.parseBoolean(options.getProperty("detectContent"))) {
+            synchronized (FileSorterCLI.class) {
+                if (contentSniffer == null) contentSniffer = new ContentSniffer(10_000);
             }
+            sorter.setContentSniffer(contentSniffer);
         }
-
-        return "Others";
+        String rulesFile = options.getProperty("rules", "").trim();
+        if (!rulesFile.isEmpty()) {
+            try {
+                sorter.setRules(RuleEngine.compile(Files.readAllLines(Paths.get(rulesFile), StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Could not read rules file " + rulesFile + ": " + e.getMessage());
+            }
+        }
+        if (Boolean.parseBoolean(options.getProperty("journal", "true"))) {
+            sorter.setJournal(new MoveJournal(Paths.get(target), log));
+        }
+        String onCollision = options.getProperty("onCollision", "rename").trim();
+        try {
+            sorter.setCollisionPolicy(FileSorter.CollisionPolicy.valueOf(
+                    onCollision.toUpperCase(Locale.ROOT).replace('-', '_')));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for onCollision: " + onCollision);
+        }
+        String duplicates = options.getProperty("duplicates", "").trim();
+        if (!duplicates.isEmpty()) {
+            DuplicateDetector.Action action;
+            try {
+                action = DuplicateDetector.Action.valueOf(duplicates.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid value for duplicates: " + duplicates);
+            }
+            sorter.setDuplicateDetector(duplicateDetectors.computeIfAbsent(Paths.get(target).toAbsolutePath().normalize(),
+                    dir -> new DuplicateDetector(dir, log)), action);
+        }
+        String unpack = options.getProperty("unpack", "").trim();
+        if (!unpack.isEmpty()) {
+            sorter.setArchiveExtractor(archiveExtractors.computeIfAbsent(Paths.get(target).toAbsolutePath().normalize(),
+                    ArchiveExtractor::new), java.util.Arrays.asList(unpack.split(",")));
+        }
+        if (state != null) sorter.setState(state);
+        sorter.setMetrics(metrics);
+        return sorter;
+    }
+
+    // Written to a temp file and renamed, so scrapers never see a partial file.
+    private static void writeMetrics(Properties options, String prometheusText, SortLog log) {
+        String file = options.getProperty("metricsFile");
+        if (file == null || file.trim().isEmpty()) return;
+        Path path = Paths.get(file.trim());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, prometheusText.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Failed to write metrics file {}: {}", path, e.getMessage());
+        }
+    }
+
+    private static Path statePath(Properties options) {
+        return Paths.get(options.getProperty("state",
+                Paths.get(System.getProperty("user.home"), ".smart-file-sorter", "state.log").toString()));
+    }
+
+    private static void runDaemon(Properties options, SortLog log) throws IOException, InterruptedException {
+        SortState state = new SortState(statePath(options), log);
+        DirectoryCache directoryCache = new DirectoryCache();
+        SortMetrics metrics = new SortMetrics(); // cumulative over the daemon's lifetime
+        Supplier<FileSorter> sorters = () -> {
+            FileSorter sorter = newSorter(options, state, metrics, log);
+            sorter.setDirectoryCache(directoryCache);
+            return sorter;
+        };
+        sorters.get(); // fail fast on bad options
+
+        Closeable daemon;
+        if (Boolean.parseBoolean(options.getProperty("watch"))) {
+            FolderWatcher watcher = new FolderWatcher(Paths.get(required(options, "source")), sorters,
+                    2000, log);
+            watcher.start();
+            daemon = watcher;
+            log.info("Watching {} for new files.", options.getProperty("source"), null);
+        } else {
+            int minutes = intOption(options, "interval", 5);
+            if (minutes == 0) throw new IllegalArgumentException("Invalid value for interval: 0");
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    int[] result = sorters.get().sortFiles(log);
+                    log.info("Auto-sort run completed. Moved {} of {}", result[1], result[0]);
+                } catch (Exception ex) {
+                    log.warn("Auto-sort run failed: {}", ex.getMessage(), null);
+                }
+            }, 0, minutes, TimeUnit.MINUTES);
+            // let a run in progress finish instead of interrupting a move
+            daemon = () -> {
+                scheduler.shutdown();
+                FileSorter.awaitQuietly(scheduler);
+            };
+            log.info("Sorting every {} minute(s).", minutes, null);
+        }
+        awaitShutdown(options, daemon, metrics::toPrometheus, state, log);
+    }
+
+    // Jobs are "job.<name>.<option>" entries. Each job uses the top-level
+    // options with its own entries on top, e.g. job.alice.source=/home/alice/Downloads.
+    static Map<String, Properties> jobOptions(Properties options) {
+        Map<String, Properties> jobs = new TreeMap<>();
+        for (String key : options.stringPropertyNames()) {
+            if (!key.startsWith("job.")) continue;
+            int dot = key.indexOf('.', 4);
+            if (dot < 0 || dot == 4) throw new IllegalArgumentException("Invalid job option: " + key);
+            Properties job = jobs.computeIfAbsent(key.substring(4, dot), name -> {
+                Properties defaults = new Properties();
+                for (String global : options.stringPropertyNames()) {
+                    if (!global.startsWith("job.")) defaults.setProperty(global, options.getProperty(global));
+                }
+                return defaults;
+            });
+            job.setProperty(key.substring(dot + 1), options.getProperty(key));
+        }
+        return jobs;
+    }
+
+    // All jobs share one scheduler thread, one state file and one I/O budget
+    // (ioBudget moves at once, ioPerDevice per target disk). Without --daemon
+    // every job runs once, all at the same time.
+    private static void runJobs(Properties options, Map<String, Properties> jobOptions, SortLog log)
+            throws IOException, InterruptedException {
+        boolean daemon = Boolean.parseBoolean(options.getProperty("daemon"));
+        SortState state = daemon ? new SortState(statePath(options), log) : null;
+        DirectoryCache directoryCache = new DirectoryCache();
+        IoGate gate = new IoGate(intOption(options, "ioBudget", 8), intOption(options, "ioPerDevice", 2));
+        JobScheduler scheduler = new JobScheduler(gate, log);
+
+        java.util.List<SortJob> jobs = new java.util.ArrayList<>();
+        for (Map.Entry<String, Properties> entry : jobOptions.entrySet()) {
+            Properties job = entry.getValue();
+            SortMetrics metrics = new SortMetrics(); // cumulative per job
+            Supplier<FileSorter> sorters = () -> {
+                FileSorter sorter = newSorter(job, state, metrics, log);
+                sorter.setDirectoryCache(directoryCache);
+                return sorter;
+            };
+            sorters.get(); // fail fast on bad options
+            jobs.add(new SortJob(entry.getKey(), required(job, "source"), required(job, "target"),
+                    intOption(job, "interval", 5), metrics, sorters));
+        }
+
+        if (!daemon) {
+            scheduler.runOnce(jobs);
+            for (SortJob job : jobs) {
+                log.info("Job {}: {}", job.name, job.lastResult + "; " + job.metrics.summary());
+            }
+            writeMetrics(options, scheduler.toPrometheus(), log);
+            scheduler.close();
+            return;
+        }
+        for (SortJob job : jobs) {
+            scheduler.schedule(job);
+            log.info("Job {}: sorting every {} minute(s).", job.name, job.intervalMinutes);
+        }
+        awaitShutdown(options, scheduler, scheduler::toPrometheus, state, log);
+    }
+
+    // Blocks until SIGTERM / Ctrl+C, then stops the daemon and saves what it knows.
+    private static void awaitShutdown(Properties options, Closeable daemon, Supplier<String> metrics,
+                                      SortState state, SortLog log) throws InterruptedException {
+        CountDownLatch stopped = new CountDownLatch(1);
+        ScheduledExecutorService metricsWriter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-writer");
+            t.setDaemon(true);
+            return t;
+        });
+        if (options.getProperty("metricsFile") != null) {
+            metricsWriter.scheduleWithFixedDelay(() -> writeMetrics(options, metrics.get(), log), 15, 15, TimeUnit.SECONDS);
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            log.info("Shutting down...", null, null);
+            try {
+                daemon.close();
+                metricsWriter.shutdown();
+                writeMetrics(options, metrics.get(), log);
+                state.flush();
+            } catch (IOException e) {
+                log.warn("Shutdown error: {}", e.getMessage(), null);
+            }
+            log.close(); // the JVM exits once hooks finish, so drain here
+            stopped.countDown();
+        }, "file-sorter-shutdown"));
+        stopped.await();
+    }
+
+    private static String required(Properties options, String key) {
+        String value = options.getProperty(key, "").trim();
+        if (value.isEmpty()) throw new IllegalArgumentException("Missing required option: " + key);
+        return value;
+    }
+
+    private static int intOption(Properties options, String key, int defaultValue) {
+        long value = longOption(options, key, defaultValue);
+        if (value > Integer.MAX_VALUE) throw new IllegalArgumentException("Invalid value for " + key);
+        return (int) value;
+    }
+
+    private static long longOption(Properties options, String key, long defaultValue) {
+        String value = options.getProperty(key);
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed < 0) throw new NumberFormatException();
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + key + ": " + value);
+        }
+    }
+}
+
+// main
+class FileSorter {
+    private final Path downloadsPath;
+    private final Path targetBasePath;
+    private final CategoryConfig categories;
+    private final ExtensionIndex extensionIndex;
+    private SortMetrics metrics = new SortMetrics();
+    private final boolean separateByExtension;
+    private int concurrency = 1;
+    private DirectoryCache directoryCache = new DirectoryCache();
+    private final Map<Path, Boolean> sameStore = new ConcurrentHashMap<>();
+    // names seen in target folders that had a collision, for suffix probing
+    private final ConcurrentHashMap<Path, Set<String>> knownNames = new ConcurrentHashMap<>();
+    private CollisionPolicy collisionPolicy = CollisionPolicy.RENAME;
+    private volatile FileStore sourceStore;
+    private CrossDeviceTransfer crossDevice = new CrossDeviceTransfer(0);
+    private SortState state;
+    private int maxDepth = 0;
+    private ContentSniffer contentSniffer;
+    private DuplicateDetector duplicateDetector;
+    private DuplicateDetector.Action duplicateAction;
+    private MoveJournal journal;
+    private ArchiveExtractor archiveExtractor;
+    private Set<String> unpackCategories = Collections.emptySet(); // lower-cased
+    private final ConcurrentLinkedQueue<Future<?>> unpacking = new ConcurrentLinkedQueue<>();
+    private RuleEngine rules;
+    private IoGate ioGate;
+    private String jobName;
+    private volatile Object targetDevice;
+    private volatile boolean cancelled;
+    private final AtomicLong skippedFiles = new AtomicLong();
+
+    // Shares the given snapshot; nothing is copied or compiled per sorter.
+    public FileSorter(String downloadsPath,
+                      String targetBasePath,
+                      CategoryConfig categories,
+                      boolean separateByExtension) {
+        this.downloadsPath = Paths.get(downloadsPath);
+        this.targetBasePath = Paths.get(targetBasePath);
+        this.separateByExtension = separateByExtension;
+        this.categories = categories;
+        this.extensionIndex = categories.index();
+        metrics.registerCategories(categories.categories().keySet());
+    }
+
+    // null or an empty map leaves only "Others", as it always has.
+    public FileSorter(String downloadsPath,
+                      String targetBasePath,
+                      Map<String, java.util.List<String>> customCategories,
+                      boolean separateByExtension) {
+        this(downloadsPath, targetBasePath,
+                CategoryConfig.of(customCategories != null ? customCategories
+                        : Collections.<String, java.util.List<String>>emptyMap()),
+                separateByExtension);
+    }
+
+    public FileSorter(String downloadsPath, String targetBasePath) {
+        this(downloadsPath, targetBasePath, (Map<String, java.util.List<String>>) null, false);
+    }
+
+    // The built-in category set, as a fresh mutable map.
+    static Map<String, java.util.List<String>> defaultCategories() {
+        Map<String, java.util.List<String>> defaults = new java.util.HashMap<>();
+        defaults.put("Documents", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "pdf", "doc", "docx", "txt", "xls", "xlsx", "ppt", "pptx", "csv", "odt", "rtf"
+        )));
+        defaults.put("Images", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "jpg", "jpeg", "png", "gif", "bmp", "svg", "webp", "ico", "tiff", "raw"
+        )));
+        defaults.put("Videos", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "mp4", "avi", "mkv", "mov", "wmv", "flv", "webm", "m4v", "mpg", "mpeg"
+        )));
+        defaults.put("Audio", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "mp3", "wav", "flac", "aac", "m4a", "ogg", "wma", "opus"
+        )));
+        defaults.put("Archives", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "zip", "rar", "7z", "tar", "gz", "bz2", "xz", "iso"
+        )));
+        defaults.put("Programs", new java.util.ArrayList<>(java.util.Arrays.asList(
+                "exe", "msi", "apk", "deb", "rpm", "dmg", "pkg", "jar"
+        )));
+        defaults.put("Others", new java.util.ArrayList<>());
+        return defaults;
+    }
+
+    static String getFileExtension(String filename) {
+        if (filename == null) return null;
+        int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex == -1 || dotIndex == filename.length() - 1) return null;
+        return filename.substring(dotIndex + 1).toLowerCase();
+    }
+
+    String getCategoryForFile(String filename) {
+        String category = extensionIndex.categoryFor(filename);
+        return category != null ? category : "Others";
+    }
+
+    private void moveFile(Path sourceFile, Path targetFile, BasicFileAttributes attrs, boolean replace,
+                          Consumer<String> logger) throws IOException {
+        Path targetDir = targetFile.getParent();
+        ensureTargetDirectory(targetDir, logger);
+        long start = System.nanoTime();
+        try {
+            relocate(sourceFile, targetFile, attrs, replace, logger);
+        } catch (NoSuchFileException e) {
+            // the target folder may have been deleted since we cached it
+            directoryCache.invalidate(targetDir);
+            if (!Files.exists(sourceFile, LinkOption.NOFOLLOW_LINKS)) throw e;
+            ensureTargetDirectory(targetDir, logger);
+            knownNames.remove(targetDir);
+            start = System.nanoTime();
+            relocate(sourceFile, targetFile, attrs, replace, logger);
+        } finally {
+            metrics.moveLatency.record(System.nanoTime() - start);
+        }
+    }
+
+    // The first time a folder is seen, .part files left there by a crashed
+    // copy or unpack are removed.
+    private void ensureTargetDirectory(Path targetDir, Consumer<String> logger) throws IOException {
+        long start = System.nanoTime();
+        if (directoryCache.ensureExists(targetDir)) {
+            metrics.mkdirLatency.record(System.nanoTime() - start); // only calls that hit the disk
+            CrossDeviceTransfer.removeStaleParts(targetDir, logger);
+        }
+    }
+
+    // Same device: a plain rename. Across devices Files.move would silently
+    // copy and delete, so regular files go through the chunked transfer.
+    // Without replace an existing target fails with FileAlreadyExistsException,
+    // also when another program takes the name at the same moment.
+    private void relocate(Path sourceFile, Path targetFile, BasicFileAttributes attrs, boolean replace,
+                          Consumer<String> logger) throws IOException {
+        if (attrs.isRegularFile() && !isOnSourceStore(targetFile.getParent())) {
+            crossDevice.move(sourceFile, targetFile, attrs, replace, logger);
+        } else if (attrs.isRegularFile() && !replace) {
+            CrossDeviceTransfer.renameNoReplace(sourceFile, targetFile);
+        } else if (replace) {
+            Files.move(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.move(sourceFile, targetFile);
+        }
+    }
+
+    // Looked up once per target folder; if the store cannot be read we
+    // assume the same device and let Files.move handle it.
+    private boolean isOnSourceStore(Path targetDir) {
+        Boolean same = sameStore.get(targetDir);
+        if (same == null) {
+            try {
+                FileStore source = sourceStore;
+                if (source == null) sourceStore = source = Files.getFileStore(downloadsPath);
+                same = source.equals(Files.getFileStore(targetDir));
+            } catch (IOException e) {
+                same = Boolean.TRUE;
+            }
+            sameStore.put(targetDir, same);
+        }
+        return same;
+    }
+
+    // Also sorts files in subfolders, down to maxDepth levels below the
+    // source folder (files end up directly in their category folder).
+    // 0 turns recursion off.
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth < 0) throw new IllegalArgumentException("maxDepth must be >= 0");
+        this.maxDepth = maxDepth;
+    }
+
+    // Remembers per-file outcomes across runs so files that keep failing are
+    // retried with backoff instead of on every run. Off by default.
+    public void setState(SortState state) {
+        this.state = state;
+    }
+
+    // Files whose extension no category claims (no extension, .bin, .tmp,
+    // .crdownload, ...) are classified by their first bytes instead.
+    // Share one sniffer between runs to keep its verdict cache. Off by default.
+    public void setContentSniffer(ContentSniffer contentSniffer) {
+        this.contentSniffer = contentSniffer;
+    }
+
+    // What to do when a file with the same name is already in the target folder.
+    public enum CollisionPolicy {
+        RENAME,     // add a " (1)", " (2)", ... suffix (default)
+        KEEP_NEWER, // replace it only if the incoming file is newer, else leave the file in place
+        SKIP,       // leave the incoming file in place
+        REPLACE     // overwrite it
+    }
+
+    private static final int MAX_RENAME_ATTEMPTS = 10_000;
+
+    public void setCollisionPolicy(CollisionPolicy collisionPolicy) {
+        this.collisionPolicy = Objects.requireNonNull(collisionPolicy);
+    }
+
+    // Makes every move wait for a slot in a budget shared with other jobs.
+    public void setIoGate(IoGate ioGate, String jobName) {
+        this.ioGate = ioGate;
+        this.jobName = Objects.requireNonNull(jobName);
+    }
+
+    // Rules tried before the extension categories; null (the default) for none.
+    public void setRules(RuleEngine rules) {
+        this.rules = rules;
+    }
+
+    // Records every move of a run so it can be resumed after a crash and
+    // undone later. The journal must be for this sorter's target folder.
+    public void setJournal(MoveJournal journal) {
+        this.journal = journal;
+    }
+
+    // Checks each file against what is already in the target tree (and what
+    // this run has moved) and skips, hard-links or quarantines exact copies.
+    // The detector must be for this sorter's target folder and should be
+    // shared by all sorters into that folder. Off by default.
+    public void setDuplicateDetector(DuplicateDetector duplicateDetector, DuplicateDetector.Action action) {
+        this.duplicateDetector = duplicateDetector;
+        this.duplicateAction = action;
+    }
+
+    // After an archive is sorted, unpacks its members of the given
+    // categories straight into their category folders; the archive itself
+    // is kept. The extractor must be for this sorter's target folder and
+    // should be shared by all sorters into that folder.
+    public void setArchiveExtractor(ArchiveExtractor archiveExtractor, Collection<String> categories) {
+        Set<String> names = new HashSet<>();
+        for (String category : categories) {
+            if (!category.trim().isEmpty()) names.add(category.trim().toLowerCase(Locale.ROOT));
+        }
+        this.archiveExtractor = archiveExtractor;
+        this.unpackCategories = names;
+    }
+
+    // Whether members of this category are unpacked (names compare ignoring case).
+    private boolean unpacks(String category) {
+        return category != null && unpackCategories.contains(category.toLowerCase(Locale.ROOT));
+    }
+
+    // Caps cross-device copies at this many bytes per second; 0 means no limit.
+    public void setBandwidthLimit(long bytesPerSecond) {
+        this.crossDevice = new CrossDeviceTransfer(bytesPerSecond);
+    }
+
+    // Number of files moved at the same time. 1 keeps the original
+    // single-threaded loop; higher values enumerate on the calling thread and
+    // hand moves to a worker pool, with at most this many moves in flight.
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) throw new IllegalArgumentException("concurrency must be >= 1");
+        this.concurrency = concurrency;
     }
 
-    private void moveFile(Path sourceFile, Path targetFile) throws IOException {
-        Files.createDirectories(targetFile.getParent());
-        Files.move(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+    // Shares a cache of created target folders with other sorters, e.g.
+    // across auto-sort runs. Each sorter gets its own cache by default.
+    public void setDirectoryCache(DirectoryCache directoryCache) {
+        this.directoryCache = Objects.requireNonNull(directoryCache);
     }
 
+    // Stops the run between files: no further file is started, and moves
+    // already under way finish normally. May be called from any thread.
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // The logger may be called from several worker threads when concurrency > 1.
     public int[] sortFiles(Consumer<String> logger) throws IOException {
-        int totalFiles = 0;
-        int movedFiles = 0;
+        metrics.markStarted();
+        if (journal != null) journal.begin();
+        try {
+            if (maxDepth > 0) return sortFilesRecursive(logger);
+            if (concurrency > 1) return sortFilesParallel(logger);
+            return sortFilesSequential(logger);
+        } finally {
+            endJournal(logger);
+        }
+    }
 
+    private int[] sortFilesSequential(Consumer<String> logger) throws IOException {
+        AtomicInteger movedFiles = new AtomicInteger();
+        int totalFiles = sortSource(moveNow(movedFiles, logger), logger);
+        logScanStats(logger);
+        finishRun(logger);
+        return new int[]{totalFiles, movedFiles.get()};
+    }
+
+    private int[] sortFilesParallel(Consumer<String> logger) throws IOException {
+        AtomicInteger movedFiles = new AtomicInteger();
+        ExecutorService workers = newWorkerExecutor(concurrency);
+        int totalFiles;
+        try {
+            totalFiles = sortSource(submitTo(workers, new Semaphore(concurrency), movedFiles, logger), logger);
+        } finally {
+            workers.shutdown();
+            awaitQuietly(workers);
+        }
+        logScanStats(logger);
+        finishRun(logger);
+        return new int[]{totalFiles, movedFiles.get()};
+    }
+
+    // Lists the source folder and hands every file to mover; the callers
+    // only decide where the moves run. Returns the number of files found.
+    private int sortSource(PlannedMove mover, Consumer<String> logger) throws IOException {
+        int totalFiles = 0;
+        PlanBatch batch = new PlanBatch(mover);
         try (DirectoryStream<Path> stream = Files.newDirectoryStream(downloadsPath)) {
+            SecureDirectoryStream<Path> secure = asSecure(stream);
             for (Path sourceFile : stream) {
-                if (Files.isDirectory(sourceFile)) continue; // skip directories
+                if (cancelled) break;
+                BasicFileAttributes attrs = readEntryAttributes(secure, sourceFile, logger);
+                if (attrs == null) continue; // vanished, or a directory
 
                 totalFiles++;
+                batch.add(sourceFile, attrs);
+            }
+            batch.flush();
+        } catch (MoveJournal.WriteException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Error reading source directory: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sorting interrupted");
+        }
+        return totalFiles;
+    }
 
-                String category = getCategoryForFile(sourceFile.getFileName().toString());
-                Path targetDir = targetBasePath.resolve(category);
-                Path targetFile;
+    // Moves each file on the calling thread.
+    private PlannedMove moveNow(AtomicInteger movedFiles, Consumer<String> logger) {
+        return (sourceFile, attrs, targetFile) -> {
+            if (moveEntry(sourceFile, attrs, targetFile, logger)) movedFiles.incrementAndGet();
+        };
+    }
 
-                if (separateByExtension) {
-                    String ext = getFileExtension(sourceFile.getFileName().toString());
-                    targetFile = targetDir.resolve(ext + "/" + sourceFile.getFileName());
-                } else {
-                    targetFile = targetDir.resolve(sourceFile.getFileName());
+    // Hands each move to a worker, with at most as many in flight as the
+    // semaphore has permits.
+    private PlannedMove submitTo(ExecutorService workers, Semaphore inFlight, AtomicInteger movedFiles,
+                                 Consumer<String> logger) {
+        return (sourceFile, attrs, targetFile) -> {
+            inFlight.acquire(); // backpressure: wait for a free worker
+            try {
+                workers.execute(() -> {
+                    try {
+                        if (moveEntry(sourceFile, attrs, targetFile, logger)) movedFiles.incrementAndGet();
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                throw e;
+            }
+        };
+    }
+
+    // Sorts files in subfolders too. Each folder is listed by its own
+    // fork/join task, so deep and shallow branches are balanced by work
+    // stealing. Links to folders are never followed, folders already visited
+    // (by file key) are skipped, and so is the target tree when it lives
+    // under the source.
+    private int[] sortFilesRecursive(Consumer<String> logger) throws IOException {
+        if (!Files.isDirectory(downloadsPath)) {
+            throw new IOException("Error reading source directory: " + downloadsPath + " is not a directory");
+        }
+        AtomicInteger totalFiles = new AtomicInteger();
+        AtomicInteger movedFiles = new AtomicInteger();
+        Set<Object> visited = ConcurrentHashMap.newKeySet();
+        Path excluded = targetBasePath.toAbsolutePath().normalize();
+        addFileKey(visited, downloadsPath);
+        addFileKey(visited, targetBasePath); // also catches the target reached via another path
+
+        // folders are listed on the fork/join pool; moves go to the workers,
+        // at most concurrency at a time as in a flat run
+        Semaphore inFlight = new Semaphore(concurrency);
+        ExecutorService workers = newWorkerExecutor(concurrency);
+        PlannedMove mover = submitTo(workers, inFlight, movedFiles, logger);
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new DirectoryTask(downloadsPath, 0, excluded, visited, totalFiles, mover, logger));
+        } finally {
+            pool.shutdown();
+            workers.shutdown();
+            awaitQuietly(workers);
+        }
+
+        logScanStats(logger);
+        finishRun(logger);
+        return new int[]{totalFiles.get(), movedFiles.get()};
+    }
+
+    private static void addFileKey(Set<Object> keys, Path dir) {
+        try {
+            Object key = Files.readAttributes(dir, BasicFileAttributes.class).fileKey();
+            if (key != null) keys.add(key);
+        } catch (IOException ignored) {
+            // does not exist (yet)
+        }
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final int depth;
+        private final Path excluded;
+        private final Set<Object> visited;
+        private final AtomicInteger totalFiles;
+        private final PlannedMove mover;
+        private final Consumer<String> logger;
+
+        DirectoryTask(Path dir, int depth, Path excluded, Set<Object> visited,
+                      AtomicInteger totalFiles, PlannedMove mover, Consumer<String> logger) {
+            this.dir = dir;
+            this.depth = depth;
+            this.excluded = excluded;
+            this.visited = visited;
+            this.totalFiles = totalFiles;
+            this.mover = mover;
+            this.logger = logger;
+        }
+
+        @Override
+        protected void compute() {
+            java.util.List<DirectoryTask> subtasks = new java.util.ArrayList<>();
+            PlanBatch batch = new PlanBatch(mover);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                SecureDirectoryStream<Path> secure = asSecure(stream);
+                for (Path entry : stream) {
+                    if (cancelled) break;
+                    BasicFileAttributes attrs = readAttributes(secure, entry, logger);
+                    if (attrs == null) continue;
+
+                    if (attrs.isDirectory()) {
+                        if (depth >= maxDepth) continue;
+                        if (entry.toAbsolutePath().normalize().equals(excluded)) continue;
+                        Object key = attrs.fileKey();
+                        if (key != null && !visited.add(key)) continue; // already seen (bind mount, loop)
+                        DirectoryTask task = new DirectoryTask(entry, depth + 1, excluded, visited,
+                                totalFiles, mover, logger);
+                        task.fork();
+                        subtasks.add(task);
+                        continue;
+                    }
+                    if (isLinkToDirectory(entry, attrs)) continue;
+
+                    totalFiles.incrementAndGet();
+                    batch.add(entry, attrs);
                 }
+                batch.flush();
+            } catch (MoveJournal.WriteException e) {
+                logger.accept(e.getMessage() + "; files in " + dir + " were left in place");
+            } catch (IOException | DirectoryIteratorException e) {
+                logger.accept("Failed to read folder " + dir + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // stop listing; moves handed over still finish
+            }
+            for (DirectoryTask task : subtasks) task.join();
+        }
+    }
 
+    // On platforms that support it (Linux, macOS) the directory stream keeps
+    // the folder open, so attributes can be read relative to that handle
+    // instead of resolving the full path again for every entry.
+    @SuppressWarnings("unchecked")
+    private static SecureDirectoryStream<Path> asSecure(DirectoryStream<Path> stream) {
+        return stream instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) stream : null;
+    }
+
+    // Type and size of a listed entry in a single attribute read.
+    // Returns null for directories (and links to them) and entries that vanished.
+    private BasicFileAttributes readEntryAttributes(SecureDirectoryStream<Path> secure, Path entry,
+                                                    Consumer<String> logger) {
+        BasicFileAttributes attrs = readAttributes(secure, entry, logger);
+        if (attrs == null || attrs.isDirectory() || isLinkToDirectory(entry, attrs)) return null;
+        return attrs;
+    }
+
+    // Attributes of the entry itself (links are not followed), or null if it
+    // vanished or could not be read; the latter is counted and logged.
+    private BasicFileAttributes readAttributes(SecureDirectoryStream<Path> secure, Path entry,
+                                               Consumer<String> logger) {
+        metrics.entriesScanned.increment();
+        long start = System.nanoTime();
+        BasicFileAttributes attrs;
+        try {
+            if (secure != null) {
+                attrs = secure.getFileAttributeView(entry.getFileName(), BasicFileAttributeView.class,
+                        LinkOption.NOFOLLOW_LINKS).readAttributes();
+                metrics.directoryHandleReads.increment();
+            } else {
+                attrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            }
+            metrics.attributeReads.increment();
+        } catch (NoSuchFileException e) {
+            return null; // vanished since it was listed
+        } catch (IOException e) {
+            metrics.entriesUnreadable.increment();
+            SortLog.log(logger, SortLog.Level.WARN, "Cannot read attributes of {}: {}", entry, e.getMessage());
+            return null;
+        } finally {
+            metrics.enumerationLatency.record(System.nanoTime() - start);
+        }
+        return attrs;
+    }
+
+    // links to folders are skipped as before; only links pay a second stat
+    private boolean isLinkToDirectory(Path entry, BasicFileAttributes attrs) {
+        if (!attrs.isSymbolicLink()) return false;
+        metrics.attributeReads.increment();
+        return Files.isDirectory(entry);
+    }
+
+    private void logScanStats(Consumer<String> logger) {
+        Map<String, Long> scan = getScanStats();
+        logger.accept("Scanned " + scan.get("entries") + " entries with " + scan.get("attributeReads")
+                + " attribute reads (" + scan.get("directoryHandleReads") + " via directory handle, "
+                + scan.get("unreadable") + " unreadable)");
+    }
+
+    // Enumeration counters: entries listed, attribute reads issued, how many
+    // of those reused the open directory handle, and entries whose
+    // attributes could not be read (skipped).
+    public Map<String, Long> getScanStats() {
+        long entries = metrics.entriesScanned.sum();
+        long reads = metrics.attributeReads.sum();
+        Map<String, Long> scan = new java.util.LinkedHashMap<>();
+        scan.put("entries", entries);
+        scan.put("attributeReads", reads);
+        scan.put("directoryHandleReads", metrics.directoryHandleReads.sum());
+        scan.put("unreadable", metrics.entriesUnreadable.sum());
+        return scan;
+    }
+
+    // Moves one file into its category folder. Returns true if it was moved.
+    public boolean sortFile(Path sourceFile, Consumer<String> logger) {
+        return sortFiles(Collections.singletonList(sourceFile), logger) == 1;
+    }
+
+    // Moves the given files, one after the other on the calling thread, as
+    // one run with one journal. Returns the number moved.
+    public int sortFiles(Collection<Path> files, Consumer<String> logger) {
+        metrics.markStarted();
+        AtomicInteger moved = new AtomicInteger();
+        try {
+            if (journal != null) journal.begin();
+            PlanBatch batch = new PlanBatch(moveNow(moved, logger));
+            for (Path sourceFile : files) {
+                if (cancelled) break;
+                BasicFileAttributes attrs;
                 try {
-                    moveFile(sourceFile, targetFile);
-                    movedFiles++;
-                    stats.merge(category, 1, Integer::sum);
-                    logger.accept("Moved: " + sourceFile + " -> " + targetFile);
+                    attrs = Files.readAttributes(sourceFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
                 } catch (IOException e) {
                     logger.accept("Failed to move " + sourceFile + ": " + e.getMessage());
+                    continue;
                 }
+                batch.add(sourceFile, attrs);
             }
+            batch.flush();
         } catch (IOException e) {
-            throw new IOException("Error reading source directory: " + e.getMessage(), e);
+            logger.accept("Failed to sort: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // not expected: the moves run on this thread
+        } finally {
+            endJournal(logger);
         }
+        finishRun(logger);
+        return moved.get();
+    }
 
-        return new int[]{totalFiles, movedFiles};
+    // Dry run: reports where each file in the source folder (and subfolders,
+    // down to maxDepth) would go and which rule or category decided it.
+    // Nothing is moved. Returns the number of files reported.
+    public int explain(Consumer<String> out) throws IOException {
+        int[] count = new int[1];
+        walkSource((file, attrs) -> {
+            StringBuilder why = new StringBuilder();
+            Path target = targetFor(file, attrs, why);
+            out.accept(downloadsPath.relativize(file) + " -> " + targetBasePath.relativize(target) + "  [" + why + "]");
+            count[0]++;
+        }, out);
+        return count[0];
     }
 
-    public Map<String, Integer> getStats() {
-        return stats;
+    // Dry run that keeps the result: classifies every file in the source
+    // (and subfolders, down to maxDepth) into a compact MovePlan without
+    // touching the disk. Entries are visible in the plan as soon as they are
+    // added, so a caller can show it while it grows.
+    public void plan(MovePlan plan, Consumer<String> logger) throws IOException {
+        checkPlanTarget(plan);
+        StringBuilder why = new StringBuilder();
+        walkSource((file, attrs) -> {
+            why.setLength(0);
+            Path target = targetFor(file, attrs, why);
+            plan.add(file, target, attrs.size(), attrs.lastModifiedTime().toMillis(), why.toString());
+        }, logger);
+        plan.markComplete();
+    }
+
+    // Moves the files of a plan made earlier, without listing the source
+    // again. A file whose size or mtime differs from the plan (or that is
+    // gone) is left alone. Collisions, duplicates and the journal apply as in
+    // a normal run. Returns {files in plan, files moved}.
+    public int[] executePlan(MovePlan plan, Consumer<String> logger) throws IOException {
+        Path planBase = checkPlanTarget(plan);
+        metrics.markStarted();
+        if (journal != null) journal.begin();
+        AtomicInteger movedFiles = new AtomicInteger();
+        Semaphore inFlight = new Semaphore(concurrency);
+        ExecutorService workers = concurrency > 1 ? newWorkerExecutor(concurrency) : null;
+        PlanBatch batch = new PlanBatch(workers == null ? moveNow(movedFiles, logger)
+                : submitTo(workers, inFlight, movedFiles, logger));
+        int count = plan.size();
+        try {
+            for (int i = 0; i < count && !cancelled; i++) {
+                Path sourceFile = plan.source(i);
+                metrics.filesFound.increment();
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(sourceFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                } catch (IOException e) {
+                    attrs = null;
+                }
+                if (attrs == null) {
+                    metrics.filesSkipped.increment();
+                    SortLog.log(logger, SortLog.Level.INFO, "Gone since planned: {}", sourceFile, null);
+                    continue;
+                }
+                if (attrs.size() != plan.fileSize(i)
+                        || attrs.lastModifiedTime().toMillis() != plan.modifiedMillis(i)) {
+                    metrics.filesSkipped.increment();
+                    SortLog.log(logger, SortLog.Level.INFO, "Changed since planned, left alone: {}", sourceFile, null);
+                    continue;
+                }
+                // re-rooted on our target path, which may be relative where the plan's is absolute
+                Path relative = planBase.relativize(plan.target(i).toAbsolutePath().normalize());
+                if (relative.startsWith("..")) throw new IOException("Plan target outside " + planBase + ": " + plan.target(i));
+                batch.addPlanned(sourceFile, attrs, targetBasePath.resolve(relative));
+            }
+            batch.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sorting interrupted");
+        } finally {
+            if (workers != null) {
+                workers.shutdown();
+                awaitQuietly(workers);
+            }
+            endJournal(logger);
+        }
+        finishRun(logger);
+        return new int[]{count, movedFiles.get()};
+    }
+
+    private Path checkPlanTarget(MovePlan plan) {
+        Path planBase = plan.targetBase().toAbsolutePath().normalize();
+        if (!planBase.equals(targetBasePath.toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("Plan is for " + plan.targetBase() + ", not " + targetBasePath);
+        }
+        return planBase;
+    }
+
+    // Walks the source like a run would (subfolders down to maxDepth, the
+    // target tree and links to folders skipped) and reports each file with
+    // its attributes. Stops early once the sorter is cancelled.
+    private void walkSource(java.util.function.BiConsumer<Path, BasicFileAttributes> visitor,
+                            Consumer<String> errors) throws IOException {
+        Path excluded = targetBasePath.toAbsolutePath().normalize();
+        Files.walkFileTree(downloadsPath, EnumSet.noneOf(FileVisitOption.class), maxDepth + 1,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                        if (cancelled) return FileVisitResult.TERMINATE;
+                        return dir.toAbsolutePath().normalize().equals(excluded)
+                                ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (cancelled) return FileVisitResult.TERMINATE;
+                        // directories below maxDepth, and links to folders, are not files to sort
+                        if (!attrs.isDirectory() && !isLinkToDirectory(file, attrs)) visitor.accept(file, attrs);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e) {
+                        errors.accept(downloadsPath.relativize(file) + ": " + e.getMessage());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+    }
+
+    private interface PlannedMove {
+        void run(Path sourceFile, BasicFileAttributes attrs, Path targetFile) throws InterruptedException;
+    }
+
+    // Collects files to move so their plans reach the journal with one fsync
+    // per batch; the moves are handed on only after that. Without a journal
+    // each file is handed on right away.
+    private final class PlanBatch {
+        private final PlannedMove next;
+        private final Path[] sources = new Path[MoveJournal.BATCH_SIZE];
+        private final BasicFileAttributes[] attrs = new BasicFileAttributes[MoveJournal.BATCH_SIZE];
+        private final Path[] targets = new Path[MoveJournal.BATCH_SIZE];
+        private int size;
+
+        PlanBatch(PlannedMove next) {
+            this.next = next;
+        }
+
+        void add(Path sourceFile, BasicFileAttributes fileAttrs) throws IOException, InterruptedException {
+            Path targetFile = planEntry(sourceFile, fileAttrs);
+            if (targetFile != null) addPlanned(sourceFile, fileAttrs, targetFile);
+        }
+
+        void addPlanned(Path sourceFile, BasicFileAttributes fileAttrs, Path targetFile)
+                throws IOException, InterruptedException {
+            if (journal == null) {
+                next.run(sourceFile, fileAttrs, targetFile);
+                return;
+            }
+            sources[size] = sourceFile;
+            attrs[size] = fileAttrs;
+            targets[size] = targetFile;
+            if (++size == MoveJournal.BATCH_SIZE) flush();
+        }
+
+        void flush() throws IOException, InterruptedException {
+            if (size == 0) return;
+            journal.plan(sources, targets, size);
+            int count = size;
+            size = 0;
+            for (int i = 0; i < count; i++) {
+                next.run(sources[i], attrs[i], targets[i]);
+                sources[i] = targets[i] = null;
+                attrs[i] = null;
+            }
+        }
+    }
+
+    // Where the file would go, before name collisions are resolved, or null
+    // if the state says to skip it this run.
+    private Path planEntry(Path sourceFile, BasicFileAttributes attrs) {
+        metrics.filesFound.increment();
+        if (state != null && !state.shouldProcess(sourceFile, attrs)) {
+            skippedFiles.incrementAndGet();
+            metrics.filesSkipped.increment();
+            return null;
+        }
+
+        return targetFor(sourceFile, attrs, null);
+    }
+
+    // Rules first, then extension categories, then content. If why is not
+    // null the reason for the choice is appended to it.
+    private Path targetFor(Path sourceFile, BasicFileAttributes attrs, StringBuilder why) {
+        String fileName = sourceFile.getFileName().toString();
+        if (rules != null) {
+            RuleEngine.Rule rule = rules.match(fileName, attrs, System.currentTimeMillis());
+            if (rule != null) {
+                if (why != null) why.append(rule);
+                return targetBasePath.resolve(rule.target).resolve(sourceFile.getFileName());
+            }
+        }
+
+        String category = extensionIndex.categoryFor(fileName);
+        String ext = null;
+        if (why != null && category != null) why.append("extension ").append(getFileExtension(fileName));
+        if (category == null && contentSniffer != null) {
+            // no claimed extension: look at the first bytes instead
+            String detected = contentSniffer.detect(sourceFile, attrs);
+            category = extensionIndex.categoryForExtension(detected);
+            if (category != null) {
+                ext = detected;
+                if (why != null) why.append("content looks like ").append(detected);
+            }
+        }
+        if (category == null) {
+            category = "Others";
+            if (why != null) why.append("no rule or category matched");
+        }
+
+        Path targetDir = targetBasePath.resolve(category);
+        Path targetFile;
+
+        if (separateByExtension) {
+            if (ext == null) ext = getFileExtension(fileName);
+            targetFile = targetDir.resolve(ext + "/" + sourceFile.getFileName());
+        } else {
+            targetFile = targetDir.resolve(sourceFile.getFileName());
+        }
+        return targetFile;
+    }
+
+    private boolean moveEntry(Path sourceFile, BasicFileAttributes attrs, Path targetFile, Consumer<String> logger) {
+        if (cancelled) {
+            metrics.filesSkipped.increment(); // planned before the run was stopped
+            return false;
+        }
+        if (ioGate == null) return performMove(sourceFile, attrs, targetFile, logger);
+        Object device = targetDevice();
+        try {
+            ioGate.acquire(jobName, device);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            SortLog.log(logger, SortLog.Level.WARN, "Not moved, interrupted: {}", sourceFile, null);
+            return false;
+        }
+        try {
+            return performMove(sourceFile, attrs, targetFile, logger);
+        } finally {
+            ioGate.release(device);
+        }
+    }
+
+    // The file store of the target folder (or of its nearest existing parent).
+    private Object targetDevice() {
+        Object device = targetDevice;
+        if (device == null) {
+            Path dir = targetBasePath.toAbsolutePath();
+            while (device == null && dir != null) {
+                try {
+                    device = Files.getFileStore(dir);
+                } catch (IOException e) {
+                    dir = dir.getParent();
+                }
+            }
+            if (device == null) device = targetBasePath.toAbsolutePath().getRoot();
+            targetDevice = device;
+        }
+        return device;
+    }
+
+    private boolean performMove(Path sourceFile, BasicFileAttributes attrs, Path targetFile, Consumer<String> logger) {
+        String category = targetBasePath.relativize(targetFile).getName(0).toString();
+        try {
+            if (duplicateDetector != null && attrs.isRegularFile() && attrs.size() > 0) {
+                DuplicateDetector.Check check = duplicateDetector.checkAndReserve(sourceFile, attrs);
+                if (check.duplicateOf != null) {
+                    Boolean moved = handleDuplicate(sourceFile, targetFile, category, attrs, check, logger);
+                    if (moved != null) return moved;
+                }
+                Path placed = null;
+                try {
+                    placed = placeFile(sourceFile, targetFile, attrs, logger);
+                } finally {
+                    if (check.duplicateOf == null) {
+                        duplicateDetector.finish(check, placed, attrs);
+                    } else if (placed != null) {
+                        duplicateDetector.register(placed, attrs, check);
+                    }
+                }
+                if (placed == null) return leftInPlace(sourceFile, attrs, targetFile, logger);
+                targetFile = placed;
+            } else {
+                Path placed = placeFile(sourceFile, targetFile, attrs, logger);
+                if (placed == null) return leftInPlace(sourceFile, attrs, targetFile, logger);
+                targetFile = placed;
+            }
+            metrics.recordMoved(category, attrs.size());
+            if (state != null) state.recordMoved(sourceFile);
+            if (journal != null) journal.moved(sourceFile, targetFile);
+            SortLog.log(logger, SortLog.Level.INFO, "Moved: {} -> {}", sourceFile, targetFile);
+            if (archiveExtractor != null && ArchiveExtractor.handles(targetFile.getFileName().toString())) {
+                unpacking.add(archiveExtractor.submit(targetFile, this::extractMember, logger));
+            }
+            return true;
+        } catch (IOException e) {
+            if (state != null) state.recordFailed(sourceFile, attrs);
+            metrics.recordFailure(e);
+            SortLog.log(logger, SortLog.Level.WARN, "Failed to move {}: {}", sourceFile, e.getMessage());
+            return false;
+        }
+    }
+
+    // Returns true if the source left the source folder, or null if it is to
+    // be moved like any other file (a hard link was not possible).
+    private Boolean handleDuplicate(Path sourceFile, Path targetFile, String category, BasicFileAttributes attrs,
+                                    DuplicateDetector.Check check, Consumer<String> logger) throws IOException {
+        metrics.duplicatesFound.increment();
+        switch (duplicateAction) {
+            case HARDLINK:
+                if (!targetFile.toAbsolutePath().normalize().equals(check.duplicateOf)) {
+                    ensureTargetDirectory(targetFile.getParent(), logger);
+                    Path linked;
+                    try {
+                        linked = placeWithPolicy(targetFile, attrs, (target, replace) -> link(target, check.duplicateOf, replace));
+                    } catch (FileAlreadyExistsException | NoSuchFileException e) {
+                        throw e;
+                    } catch (FileSystemException | UnsupportedOperationException e) {
+                        // the copy is on another device, or links are not supported there
+                        SortLog.log(logger, SortLog.Level.DEBUG, "Cannot link {} to {}, moving it instead", targetFile, check.duplicateOf);
+                        return null;
+                    }
+                    if (linked == null) return leftInPlace(sourceFile, attrs, targetFile, logger);
+                    duplicateDetector.register(linked, attrs, check);
+                    Files.delete(sourceFile);
+                    if (journal != null) journal.moved(sourceFile, linked);
+                } else {
+                    Files.delete(sourceFile);
+                    if (journal != null) journal.replacedByLink(sourceFile, check.duplicateOf);
+                }
+                metrics.recordMoved(category, 0);
+                if (state != null) state.recordMoved(sourceFile);
+                SortLog.log(logger, SortLog.Level.INFO, "Linked duplicate: {} -> {}", sourceFile, check.duplicateOf);
+                return true;
+            case QUARANTINE:
+                Path quarantined = placeFile(sourceFile,
+                        duplicateDetector.quarantineDir().resolve(sourceFile.getFileName()), attrs, logger);
+                if (quarantined == null) return leftInPlace(sourceFile, attrs, targetFile, logger);
+                if (journal != null) journal.moved(sourceFile, quarantined);
+                metrics.recordMoved(DuplicateDetector.QUARANTINE_DIR, attrs.size());
+                if (state != null) state.recordMoved(sourceFile);
+                SortLog.log(logger, SortLog.Level.INFO, "Quarantined duplicate: {} -> {}", sourceFile, quarantined);
+                return true;
+            default:
+                metrics.filesSkipped.increment();
+                if (state != null) state.recordLeftInPlace(sourceFile, attrs);
+                SortLog.log(logger, SortLog.Level.INFO, "Duplicate left in place: {} (same as {})", sourceFile, check.duplicateOf);
+                return false;
+        }
+    }
+
+    // Replacing goes through a link under a temporary name and a rename, so
+    // the old file is never gone without the new one in its place.
+    private static void link(Path target, Path existing, boolean replace) throws IOException {
+        if (!replace) {
+            Files.createLink(target, existing);
+            return;
+        }
+        Path part;
+        while (true) {
+            part = target.resolveSibling("." + target.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1) + ".link");
+            try {
+                Files.createLink(part, existing);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // taken; draw another name
+            }
+        }
+        try {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(part);
+            throw e;
+        }
+    }
+
+    private boolean leftInPlace(Path sourceFile, BasicFileAttributes attrs, Path targetFile, Consumer<String> logger) {
+        metrics.filesSkipped.increment();
+        if (state != null) state.recordLeftInPlace(sourceFile, attrs);
+        SortLog.log(logger, SortLog.Level.INFO, "Left in place: {} ({} already exists)", sourceFile, targetFile);
+        return false;
+    }
+
+    // Moves the file to targetFile, or next to it if the collision policy
+    // says so. Returns where it ended up, or null if it was left in place.
+    private Path placeFile(Path sourceFile, Path targetFile, BasicFileAttributes attrs,
+                           Consumer<String> logger) throws IOException {
+        return placeWithPolicy(targetFile, attrs,
+                (target, replace) -> moveFile(sourceFile, target, attrs, replace, logger));
+    }
+
+    private interface Placement {
+        // must fail with FileAlreadyExistsException when !replace and target exists
+        void to(Path target, boolean replace) throws IOException;
+    }
+
+    // The common case costs one no-replace move: names are only looked at
+    // after a FileAlreadyExistsException.
+    private Path placeWithPolicy(Path targetFile, BasicFileAttributes attrs, Placement placement) throws IOException {
+        if (collisionPolicy == CollisionPolicy.REPLACE) {
+            placement.to(targetFile, true);
+            return targetFile;
+        }
+        try {
+            placement.to(targetFile, false);
+            rememberName(targetFile);
+            return targetFile;
+        } catch (FileAlreadyExistsException e) {
+            metrics.nameCollisions.increment();
+        }
+
+        switch (collisionPolicy) {
+            case KEEP_NEWER:
+                FileTime existing = Files.getLastModifiedTime(targetFile, LinkOption.NOFOLLOW_LINKS);
+                if (attrs.lastModifiedTime().compareTo(existing) <= 0) return null;
+                placement.to(targetFile, true);
+                return targetFile;
+            case RENAME:
+                return placeRenamed(targetFile, placement);
+            default:
+                return null;
+        }
+    }
+
+    // Tries "name (1).ext", "name (2).ext", ... skipping names already known
+    // to be taken in that folder, so probing does not stat each candidate.
+    private Path placeRenamed(Path targetFile, Placement placement) throws IOException {
+        Path dir = targetFile.getParent();
+        Set<String> names = knownNames.get(dir);
+        if (names == null) {
+            Set<String> listed = ConcurrentHashMap.newKeySet();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path entry : stream) listed.add(entry.getFileName().toString());
+            }
+            names = knownNames.putIfAbsent(dir, listed);
+            if (names == null) names = listed;
+        }
+
+        String name = targetFile.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int n = 1; n <= MAX_RENAME_ATTEMPTS; n++) {
+            String candidate = stem + " (" + n + ")" + ext;
+            if (!names.add(candidate)) continue; // taken, or claimed by another worker
+            Path renamed = dir.resolve(candidate);
+            try {
+                placement.to(renamed, false);
+                return renamed;
+            } catch (FileAlreadyExistsException e) {
+                // created behind our back; the name stays marked as taken
+            }
+        }
+        throw new FileAlreadyExistsException(targetFile.toString(), null,
+                "no free name after " + MAX_RENAME_ATTEMPTS + " attempts");
+    }
+
+    private void rememberName(Path placed) {
+        Set<String> names = knownNames.get(placed.getParent());
+        if (names != null) names.add(placed.getFileName().toString());
+    }
+
+    // Called once no moves are in flight, also when the run failed.
+    private void endJournal(Consumer<String> logger) {
+        if (journal == null) return;
+        try {
+            journal.end();
+        } catch (IOException e) {
+            logger.accept("Failed to close move journal: " + e.getMessage());
+        }
+    }
+
+    // Writes one archive member into its category folder, if that category is
+    // unpacked. The member is written to a hidden .part file next to its
+    // target first, then named by the collision policy like a moved file.
+    private boolean extractMember(String name, long modifiedMillis, InputStream data,
+                                  Consumer<String> logger) throws IOException {
+        String category = extensionIndex.categoryFor(name);
+        if (!unpacks(category)) return false;
+        Path targetDir = targetBasePath.resolve(category);
+        if (separateByExtension) targetDir = targetDir.resolve(getFileExtension(name));
+        Path targetFile = targetDir.resolve(name);
+        ensureTargetDirectory(targetDir, logger);
+
+        Path part = CrossDeviceTransfer.newPart(targetFile);
+        try {
+            Files.copy(data, part, StandardCopyOption.REPLACE_EXISTING);
+            if (modifiedMillis > 0) Files.setLastModifiedTime(part, FileTime.fromMillis(modifiedMillis));
+            BasicFileAttributes attrs = Files.readAttributes(part, BasicFileAttributes.class);
+            Path placed = placeWithPolicy(targetFile, attrs, (target, replace) -> {
+                if (replace) {
+                    Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    CrossDeviceTransfer.renameNoReplace(part, target);
+                }
+            });
+            if (placed == null) {
+                SortLog.log(logger, SortLog.Level.INFO, "Not unpacked, name exists: {}", targetFile, null);
+                return false;
+            }
+            metrics.filesUnpacked.increment();
+            SortLog.log(logger, SortLog.Level.INFO, "Unpacked: {} -> {}", name, placed);
+            return true;
+        } finally {
+            Files.deleteIfExists(part);
+        }
+    }
+
+    // Writes buffered state records and reports what the state let us skip.
+    private void finishRun(Consumer<String> logger) {
+        ArchiveExtractor.await(unpacking);
+        metrics.markFinished();
+        knownNames.clear(); // other programs may have changed the folders before the next run
+        if (duplicateDetector != null) {
+            try {
+                duplicateDetector.save();
+            } catch (IOException e) {
+                logger.accept("Failed to save duplicate index: " + e.getMessage());
+            }
+        }
+        if (state == null) return;
+        long skipped = skippedFiles.getAndSet(0);
+        if (skipped > 0) {
+            logger.accept("Skipped " + skipped + " unchanged file(s) that failed recently or were left in place");
+        }
+        try {
+            state.flush();
+        } catch (IOException e) {
+            logger.accept("Failed to save sort state: " + e.getMessage());
+        }
+    }
+
+    // Virtual threads when the runtime has them (Java 21+), otherwise a fixed pool.
+    static ExecutorService newWorkerExecutor(int threads) {
+        try {
+            java.lang.reflect.Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "file-sorter-worker");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    static void awaitQuietly(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.MINUTES)) break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Files moved per category, as a read-only snapshot.
+    public Map<String, Integer> getStats() {
+        return metrics.categorySnapshot();
+    }
+
+    public SortMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Records into the given metrics instead of this sorter's own, so a
+    // caller can create it up front and watch a run in progress.
+    public void setMetrics(SortMetrics metrics) {
+        metrics.registerCategories(categories.categories().keySet());
+        this.metrics = metrics;
+    }
+
+    public Path getDownloadsPath() {
+        return downloadsPath;
+    }
+}
+
+// Asynchronous log sink behind the Consumer<String> logger hook. Callers put
+// records into a fixed ring buffer and a background thread formats and writes
+// them, so a sort run never waits on a console write unless the buffer is full
+// (then it blocks, which is the back-pressure). Records below the configured
+// level are dropped before anything is formatted: log(level, template, a, b)
+// keeps the template and arguments as-is and only the writer thread
+// substitutes the "{}" placeholders. Optionally every record is also written
+// as a JSON line to a size-rotated file.
+final class SortLog implements Consumer<String>, Closeable {
+    enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int DRAIN_BATCH = 256;
+    // first argument of messages logged through accept(): not a template
+    private static final Object VERBATIM = new Object();
+
+    private final PrintStream console;
+    private final Path jsonFile;
+    private final long jsonMaxBytes;
+    private final int jsonMaxFiles;
+    private volatile Level level;
+
+    // ring buffer slots, guarded by lock
+    private final Level[] levels;
+    private final long[] times;
+    private final String[] templates;
+    private final Object[] firstArgs;
+    private final Object[] secondArgs;
+    private int head;
+    private int count;
+    private boolean closed;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final Thread writer;
+    private Writer json;
+    private long jsonBytes;
+
+    SortLog(PrintStream console, Level level) {
+        this(console, level, 8192, null, 0, 0);
+    }
+
+    // jsonFile may be null; it is rotated to jsonFile.1 .. jsonFile.<maxFiles>
+    // once it grows past maxBytes
+    SortLog(PrintStream console, Level level, int capacity, Path jsonFile, long maxBytes, int maxFiles) {
+        this.console = console;
+        this.level = level;
+        this.jsonFile = jsonFile;
+        this.jsonMaxBytes = maxBytes;
+        this.jsonMaxFiles = maxFiles;
+        this.levels = new Level[capacity];
+        this.times = new long[capacity];
+        this.templates = new String[capacity];
+        this.firstArgs = new Object[capacity];
+        this.secondArgs = new Object[capacity];
+        this.writer = new Thread(this::drainLoop, "sort-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    // Logs to the given sink; only SortLog sinks get lazy formatting.
+    static void log(Consumer<String> logger, Level level, String template, Object a, Object b) {
+        if (logger instanceof SortLog) {
+            ((SortLog) logger).log(level, template, a, b);
+        } else {
+            logger.accept(format(template, a, b));
+        }
+    }
+
+    void setLevel(Level level) {
+        this.level = level;
+    }
+
+    boolean isEnabled(Level level) {
+        return level != Level.OFF && level.compareTo(this.level) >= 0;
+    }
+
+    // Plain messages are logged as they are; "{}" in them is not a placeholder.
+    @Override
+    public void accept(String message) {
+        log(Level.INFO, message, VERBATIM, null);
+    }
+
+    void info(String template, Object a, Object b) {
+        log(Level.INFO, template, a, b);
+    }
+
+    void warn(String template, Object a, Object b) {
+        log(Level.WARN, template, a, b);
+    }
+
+    void log(Level level, String template, Object a, Object b) {
+        if (!isEnabled(level)) return;
+        lock.lock();
+        try {
+            if (closed) {
+                // late messages are written directly
+                if (console != null) console.println(render(template, a, b));
+                return;
+            }
+            while (count == levels.length) notFull.awaitUninterruptibly();
+            int slot = (head + count) % levels.length;
+            levels[slot] = level;
+            times[slot] = System.currentTimeMillis();
+            templates[slot] = template;
+            firstArgs[slot] = a;
+            secondArgs[slot] = b;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainLoop() {
+        Level[] batchLevels = new Level[DRAIN_BATCH];
+        long[] batchTimes = new long[DRAIN_BATCH];
+        String[] batchTemplates = new String[DRAIN_BATCH];
+        Object[] batchFirst = new Object[DRAIN_BATCH];
+        Object[] batchSecond = new Object[DRAIN_BATCH];
+        StringBuilder text = new StringBuilder();
+
+        while (true) {
+            int n;
+            lock.lock();
+            try {
+                while (count == 0 && !closed) notEmpty.awaitUninterruptibly();
+                if (count == 0) return; // closed and drained
+                n = Math.min(count, DRAIN_BATCH);
+                for (int i = 0; i < n; i++) {
+                    int slot = (head + i) % levels.length;
+                    batchLevels[i] = levels[slot];
+                    batchTimes[i] = times[slot];
+                    batchTemplates[i] = templates[slot];
+                    batchFirst[i] = firstArgs[slot];
+                    batchSecond[i] = secondArgs[slot];
+                    templates[slot] = null;
+                    firstArgs[slot] = null;
+                    secondArgs[slot] = null;
+                }
+                head = (head + n) % levels.length;
+                count -= n;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            text.setLength(0);
+            for (int i = 0; i < n; i++) {
+                String message;
+                try {
+                    message = render(batchTemplates[i], batchFirst[i], batchSecond[i]);
+                } catch (RuntimeException e) {
+                    message = batchTemplates[i] + " [format failed: " + e + "]";
+                }
+                if (console != null) text.append(message).append(System.lineSeparator());
+                if (jsonFile != null) writeJson(batchLevels[i], batchTimes[i], message);
+                batchFirst[i] = null;
+                batchSecond[i] = null;
+            }
+            if (console != null) {
+                console.print(text);
+                console.flush();
+            }
+            if (json != null) {
+                try {
+                    json.flush();
+                } catch (IOException e) {
+                    closeJson(e);
+                }
+            }
+        }
+    }
+
+    private void writeJson(Level level, long time, String message) {
+        try {
+            if (json == null) openJson();
+            if (json == null) return;
+            String line = "{\"ts\":\"" + Instant.ofEpochMilli(time) + "\",\"level\":\"" + level
+                    + "\",\"msg\":\"" + escapeJson(message) + "\"}\n";
+            json.write(line);
+            jsonBytes += utf8Length(line);
+            if (jsonMaxBytes > 0 && jsonBytes >= jsonMaxBytes) rotate();
+        } catch (IOException e) {
+            closeJson(e);
+        }
+    }
+
+    private static String render(String template, Object a, Object b) {
+        return a == VERBATIM ? template : format(template, a, b);
+    }
+
+    // bytes the line takes in the UTF-8 log file, without encoding it twice
+    private static long utf8Length(String s) {
+        long bytes = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes += 1;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    private void openJson() throws IOException {
+        Path parent = jsonFile.toAbsolutePath().getParent();
+        if (parent != null) Files.createDirectories(parent);
+        jsonBytes = Files.exists(jsonFile) ? Files.size(jsonFile) : 0;
+        json = Files.newBufferedWriter(jsonFile, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void rotate() throws IOException {
+        json.close();
+        json = null;
+        for (int i = jsonMaxFiles - 1; i >= 1; i--) {
+            Path older = jsonFile.resolveSibling(jsonFile.getFileName() + "." + i);
+            if (Files.exists(older)) {
+                Files.move(older, jsonFile.resolveSibling(jsonFile.getFileName() + "." + (i + 1)),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (jsonMaxFiles > 0) {
+            Files.move(jsonFile, jsonFile.resolveSibling(jsonFile.getFileName() + ".1"),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(jsonFile);
+        }
+    }
+
+    private void closeJson(IOException cause) {
+        if (console != null) console.println("Log file " + jsonFile + " failed: " + cause.getMessage());
+        try {
+            if (json != null) json.close();
+        } catch (IOException ignored) {
+            // already failing
+        }
+        json = null;
+    }
+
+    // Writes everything still buffered and stops the writer thread.
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (json != null) {
+            try {
+                json.close();
+            } catch (IOException ignored) {
+                // nothing left to report to
+            }
+        }
+    }
+
+    // Replaces the first two "{}" placeholders with a and b.
+    static String format(String template, Object a, Object b) {
+        if (template == null) return "null";
+        int first = template.indexOf("{}");
+        if (first < 0) return template;
+        StringBuilder sb = new StringBuilder(template.length() + 64);
+        sb.append(template, 0, first).append(a);
+        int second = template.indexOf("{}", first + 2);
+        if (second < 0) return sb.append(template, first + 2, template.length()).toString();
+        return sb.append(template, first + 2, second).append(b)
+                .append(template, second + 2, template.length()).toString();
+    }
+
+    private static String escapeJson(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// Live counters for a sort run. Workers update LongAdders, which do not
+// contend the way a shared counter would, and readers (the GUI progress bar,
+// the CLI metrics file) take snapshots while the run is still going.
+// Metrics shared by several runs (daemon, watch mode, jobs) keep adding up
+// the counters, while elapsed time and files/s cover the latest run only.
+final class SortMetrics {
+    final LongAdder entriesScanned = new LongAdder();
+    final LongAdder attributeReads = new LongAdder();
+    final LongAdder directoryHandleReads = new LongAdder();
+    final LongAdder entriesUnreadable = new LongAdder();
+    final LongAdder filesFound = new LongAdder();
+    final LongAdder filesMoved = new LongAdder();
+    final LongAdder filesFailed = new LongAdder();
+    final LongAdder filesSkipped = new LongAdder();
+    final LongAdder bytesMoved = new LongAdder();
+    final LongAdder duplicatesFound = new LongAdder();
+    final LongAdder nameCollisions = new LongAdder();
+    final LongAdder filesUnpacked = new LongAdder();
+    final LatencyHistogram enumerationLatency = new LatencyHistogram();
+    final LatencyHistogram mkdirLatency = new LatencyHistogram();
+    final LatencyHistogram moveLatency = new LatencyHistogram();
+    private final ConcurrentHashMap<String, LongAdder> movedByCategory = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> failuresByType = new ConcurrentHashMap<>();
+    private volatile long startNanos;
+    private volatile long finishNanos;
+    private volatile long doneAtStart; // filesDone() when the latest run started
+
+    void registerCategories(Collection<String> categories) {
+        for (String category : categories) {
+            movedByCategory.computeIfAbsent(category, k -> new LongAdder());
+        }
+    }
+
+    void markStarted() {
+        doneAtStart = filesDone();
+        startNanos = System.nanoTime();
+        finishNanos = 0;
+    }
+
+    void markFinished() {
+        finishNanos = System.nanoTime();
+    }
+
+    void recordMoved(String category, long bytes) {
+        filesMoved.increment();
+        bytesMoved.add(bytes);
+        movedByCategory.computeIfAbsent(category, k -> new LongAdder()).increment();
+    }
+
+    void recordFailure(Throwable failure) {
+        filesFailed.increment();
+        failuresByType.computeIfAbsent(failure.getClass().getSimpleName(), k -> new LongAdder()).increment();
+    }
+
+    boolean isFinished() {
+        return finishNanos != 0;
+    }
+
+    // Files found so far that have been moved, failed or skipped.
+    long filesDone() {
+        return filesMoved.sum() + filesFailed.sum() + filesSkipped.sum();
+    }
+
+    double elapsedSeconds() {
+        long start = startNanos;
+        if (start == 0) return 0;
+        long end = finishNanos != 0 ? finishNanos : System.nanoTime();
+        return (end - start) / 1e9;
+    }
+
+    // Latest run only.
+    double filesPerSecond() {
+        double seconds = elapsedSeconds();
+        return seconds > 0 ? (filesDone() - doneAtStart) / seconds : 0;
+    }
+
+    // Seconds left for the files found so far, or -1 if there is no rate yet.
+    // Enumeration runs ahead of the moves, so this converges as it finishes.
+    double etaSeconds() {
+        double rate = filesPerSecond();
+        if (rate <= 0) return -1;
+        return Math.max(0, filesFound.sum() - filesDone()) / rate;
+    }
+
+    Map<String, Integer> categorySnapshot() {
+        Map<String, Integer> snapshot = new java.util.HashMap<>();
+        for (Map.Entry<String, LongAdder> e : movedByCategory.entrySet()) {
+            snapshot.put(e.getKey(), e.getValue().intValue());
+        }
+        return Collections.unmodifiableMap(snapshot);
+    }
+
+    String summary() {
+        return String.format(Locale.ROOT, "%d/%d files done (%d moved, %d failed, %d skipped), %d bytes, %.1f files/s",
+                filesDone(), filesFound.sum(), filesMoved.sum(), filesFailed.sum(), filesSkipped.sum(),
+                bytesMoved.sum(), filesPerSecond());
+    }
+
+    // Prometheus text exposition format, e.g. for node_exporter's textfile collector.
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder(2048);
+        counter(out, "sorter_entries_scanned_total", "Directory entries listed.", entriesScanned.sum());
+        counter(out, "sorter_attribute_reads_total", "File attribute reads issued during enumeration.", attributeReads.sum());
+        counter(out, "sorter_entries_unreadable_total", "Listed entries whose attributes could not be read.", entriesUnreadable.sum());
+        counter(out, "sorter_files_found_total", "Files found in the source.", filesFound.sum());
+        counter(out, "sorter_files_moved_total", "Files moved.", filesMoved.sum());
+        counter(out, "sorter_files_failed_total", "Files that failed to move.", filesFailed.sum());
+        counter(out, "sorter_files_skipped_total", "Files not moved on purpose: failed recently, left in place or stopped.", filesSkipped.sum());
+        counter(out, "sorter_bytes_moved_total", "Bytes moved.", bytesMoved.sum());
+        counter(out, "sorter_duplicates_total", "Files found to duplicate one already sorted.", duplicatesFound.sum());
+        counter(out, "sorter_name_collisions_total", "Moves that found a file with the same name.", nameCollisions.sum());
+        counter(out, "sorter_files_unpacked_total", "Files unpacked from sorted archives.", filesUnpacked.sum());
+
+        out.append("# HELP sorter_category_files_total Files moved per category.\n");
+        out.append("# TYPE sorter_category_files_total counter\n");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(movedByCategory).entrySet()) {
+            out.append("sorter_category_files_total{category=\"").append(escapeLabel(e.getKey())).append("\"} ")
+                    .append(e.getValue().sum()).append('\n');
+        }
+        out.append("# HELP sorter_failures_total Failed moves per exception type.\n");
+        out.append("# TYPE sorter_failures_total counter\n");
+        for (Map.Entry<String, LongAdder> e : new TreeMap<>(failuresByType).entrySet()) {
+            out.append("sorter_failures_total{exception=\"").append(escapeLabel(e.getKey())).append("\"} ")
+                    .append(e.getValue().sum()).append('\n');
+        }
+
+        gauge(out, "sorter_run_seconds", "Duration of the latest run, so far if it is still going.", elapsedSeconds());
+        gauge(out, "sorter_files_per_second", "Files done per second in the latest run.", filesPerSecond());
+        enumerationLatency.appendPrometheus(out, "sorter_enumeration_seconds", "Attribute read time per listed entry.");
+        mkdirLatency.appendPrometheus(out, "sorter_mkdir_seconds", "Target folder creation time (cache misses only).");
+        moveLatency.appendPrometheus(out, "sorter_move_seconds", "Time per file move.");
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, double value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
+
+// Latency histogram with power-of-two nanosecond buckets (bucket i holds
+// values below 2^i ns), cheap enough to record on every file.
+final class LatencyHistogram {
+    private static final int BUCKETS = 40; // up to ~9 minutes
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sumNanos = new LongAdder();
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        counts.incrementAndGet(bucket);
+        sumNanos.add(nanos);
+    }
+
+    void appendPrometheus(StringBuilder out, String name, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) snapshot[i] = counts.get(i);
+        int last = BUCKETS - 1;
+        while (last > 0 && snapshot[last] == 0) last--;
+        long cumulative = 0;
+        for (int i = 0; i <= last; i++) {
+            cumulative += snapshot[i];
+            double le = (1L << i) / 1e9;
+            out.append(name).append("_bucket{le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+        }
+        for (int i = last + 1; i < BUCKETS; i++) cumulative += snapshot[i];
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+        out.append(name).append("_sum ").append(sumNanos.sum() / 1e9).append('\n');
+        out.append(name).append("_count ").append(cumulative).append('\n');
+    }
+}
+
+// Outcome of earlier runs, keyed by source path, so repeated runs do not
+// retry a file that failed to move until it changes (size or mtime) or its
+// backoff has passed. Files left in the source on purpose (name taken under
+// the skip/keep-newer policies, duplicates under --duplicates skip) are not
+// looked at again until they change, or a day later in case the file in the
+// way is gone. Stored as an append-only log of tab-separated records:
+//   F <size> <mtime> <failures> <nextAttemptMillis> <path>   failed to move
+//   L <size> <mtime> <nextAttemptMillis> <path>              left in place
+//   M <path>                                              moved, forget it
+// The log is read lazily on first use and compacted when it is mostly
+// superseded records. All methods are safe to call from worker threads.
+final class SortState {
+    private static final long BASE_BACKOFF_MILLIS = 60_000;            // 1 minute
+    private static final long MAX_BACKOFF_MILLIS = 24 * 60 * 60_000L;  // 1 day, also for files left in place
+
+    private final Path file;
+    private final Consumer<String> logger;
+    // path -> {size, mtime, failures (0 if left in place), nextAttempt}
+    private final Map<String, long[]> outcomes = new java.util.HashMap<>();
+    private final StringBuilder pendingWrites = new StringBuilder();
+    private boolean loaded;
+    private int logRecords;
+
+    SortState(Path file, Consumer<String> logger) {
+        this.file = file;
+        this.logger = logger;
+    }
+
+    synchronized boolean shouldProcess(Path source, BasicFileAttributes attrs) {
+        ensureLoaded();
+        long[] outcome = outcomes.get(source.toString());
+        if (outcome == null) return true;
+        if (outcome[0] != attrs.size() || outcome[1] != attrs.lastModifiedTime().toMillis()) return true;
+        return System.currentTimeMillis() >= outcome[3];
+    }
+
+    synchronized void recordMoved(Path source) {
+        ensureLoaded();
+        String key = source.toString();
+        if (outcomes.remove(key) == null) return; // nothing to forget
+        pendingWrites.append("M\t").append(escape(key)).append('\n');
+    }
+
+    // The file was left in the source by policy, not by an error.
+    synchronized void recordLeftInPlace(Path source, BasicFileAttributes attrs) {
+        ensureLoaded();
+        String key = source.toString();
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+        long nextAttempt = System.currentTimeMillis() + MAX_BACKOFF_MILLIS;
+        outcomes.put(key, new long[]{size, mtime, 0, nextAttempt});
+
+        pendingWrites.append("L\t").append(size).append('\t').append(mtime).append('\t')
+                .append(nextAttempt).append('\t').append(escape(key)).append('\n');
+    }
+
+    synchronized void recordFailed(Path source, BasicFileAttributes attrs) {
+        ensureLoaded();
+        String key = source.toString();
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().toMillis();
+
+        long[] failure = outcomes.get(key);
+        long count = (failure != null && failure[0] == size && failure[1] == mtime) ? failure[2] + 1 : 1;
+        long backoff = BASE_BACKOFF_MILLIS << Math.min(count - 1, 20);
+        long nextAttempt = System.currentTimeMillis() + Math.min(backoff, MAX_BACKOFF_MILLIS);
+        outcomes.put(key, new long[]{size, mtime, count, nextAttempt});
+
+        pendingWrites.append("F\t").append(size).append('\t').append(mtime).append('\t')
+                .append(count).append('\t').append(nextAttempt).append('\t')
+                .append(escape(key)).append('\n');
+    }
+
+    // Appends the records gathered since the last flush.
+    synchronized void flush() throws IOException {
+        if (pendingWrites.length() == 0) return;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        if (logRecords > 1000 && logRecords > 4 * outcomes.size()) {
+            compact();
+        } else {
+            Files.write(file, pendingWrites.toString().getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            logRecords += countLines(pendingWrites);
+        }
+        pendingWrites.setLength(0);
+    }
+
+    // Rewrites the log with one record per live entry.
+    private void compact() throws IOException {
+        StringBuilder out = new StringBuilder();
+        for (Map.Entry<String, long[]> e : outcomes.entrySet()) {
+            long[] f = e.getValue();
+            if (f[2] == 0) {
+                out.append("L\t").append(f[0]).append('\t').append(f[1]).append('\t').append(f[3]);
+            } else {
+                out.append("F\t").append(f[0]).append('\t').append(f[1]).append('\t')
+                        .append(f[2]).append('\t').append(f[3]);
+            }
+            out.append('\t').append(escape(e.getKey())).append('\n');
+        }
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, out.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logRecords = outcomes.size();
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        if (!Files.exists(file)) return;
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                logRecords++;
+                String[] parts = line.split("\t", -1);
+                try {
+                    if (parts.length == 2 && parts[0].equals("M")) {
+                        outcomes.remove(unescape(parts[1]));
+                    } else if (parts.length == 6 && parts[0].equals("F")) {
+                        outcomes.put(unescape(parts[5]), new long[]{
+                                Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                                Long.parseLong(parts[3]), Long.parseLong(parts[4])});
+                    } else if (parts.length == 5 && parts[0].equals("L")) {
+                        outcomes.put(unescape(parts[4]), new long[]{
+                                Long.parseLong(parts[1]), Long.parseLong(parts[2]), 0, Long.parseLong(parts[3])});
+                    }
+                } catch (NumberFormatException ignored) {
+                    // torn or corrupt record, skip it
+                }
+            }
+        } catch (IOException e) {
+            SortLog.log(logger, SortLog.Level.WARN, "Could not read sort state {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static int countLines(CharSequence s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) == '\n') n++;
+        }
+        return n;
+    }
+
+    static String escape(String s) {
+        if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length() + 8);
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                char next = s.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// Moves a file to another device with FileChannel.transferTo, which lets the
+// kernel copy without going through user space (sendfile/copy_file_range).
+// The data goes to a new hidden .part file next to the target, which is
+// removed if the copy fails. Copies always start from the beginning: the
+// unsynced tail of a file left by a crash cannot be trusted. The source is
+// only deleted after the copy has been forced to disk and its length checked.
+final class CrossDeviceTransfer {
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+    private static final long PROGRESS_THRESHOLD = 64L * 1024 * 1024; // log progress for files above this
+    // .part files untouched for this long belong to no running copy
+    private static final long STALE_PART_MILLIS = 60L * 60 * 1000;
+
+    private final long bytesPerSecond;
+
+    CrossDeviceTransfer(long bytesPerSecond) {
+        if (bytesPerSecond < 0) throw new IllegalArgumentException("bandwidth limit must be >= 0");
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    void move(Path source, Path target, BasicFileAttributes attrs, boolean replace,
+              Consumer<String> logger) throws IOException {
+        // checked up front too, so a collision does not cost a full copy
+        if (!replace && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        long size = attrs.size();
+        boolean reportProgress = size >= PROGRESS_THRESHOLD;
+        Path part = newPart(target);
+        boolean placed = false;
+        try {
+            copy(source, part, size, reportProgress, logger);
+            if (replace) {
+                Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                renameNoReplace(part, target);
+            }
+            placed = true;
+        } finally {
+            if (!placed) Files.deleteIfExists(part);
+        }
+        // only now: a .part with the source's old mtime would look stale
+        Files.setLastModifiedTime(target, attrs.lastModifiedTime());
+        Files.delete(source);
+    }
+
+    private void copy(Path source, Path part, long size, boolean reportProgress,
+                      Consumer<String> logger) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            long startNanos = System.nanoTime();
+            long startPosition = position;
+            int lastPercent = -1;
+            while (position < size) {
+                long n = in.transferTo(position, Math.min(CHUNK_SIZE, size - position), out);
+                if (n <= 0) break; // source shrank while copying
+                position += n;
+
+                if (reportProgress) {
+                    int percent = (int) (position * 100 / size);
+                    if (percent / 10 != lastPercent / 10) {
+                        logger.accept("Copying " + source.getFileName() + ": " + percent + "% ("
+                                + position + " / " + size + " bytes)");
+                        lastPercent = percent;
+                    }
+                }
+                throttle(position - startPosition, startNanos);
+            }
+            out.force(true);
+
+            if (out.size() != size || in.size() != size) {
+                throw new IOException("Copy incomplete: expected " + size + " bytes, copied "
+                        + out.size() + " (source is now " + in.size() + ")");
+            }
+        }
+    }
+
+    // A rename that refuses to overwrite. Files.move checks for the target
+    // and then renames, which replaces a file created in between; instead
+    // the file is hard-linked under the new name (failing if it is taken)
+    // and the old name removed. Where links cannot be made (some file
+    // systems, protected_hardlinks) it falls back to Files.move.
+    static void renameNoReplace(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (FileAlreadyExistsException | NoSuchFileException | AccessDeniedException e) {
+            throw e;
+        } catch (FileSystemException | UnsupportedOperationException e) {
+            Files.move(source, target);
+            return;
+        }
+        try {
+            Files.delete(source);
+        } catch (NoSuchFileException e) {
+            // removed by someone else meanwhile; the file is in place
+        } catch (IOException e) {
+            Files.deleteIfExists(target); // the source is still there
+            throw e;
+        }
+    }
+
+    // A new, empty hidden file next to target, with the default permissions
+    // (Files.createTempFile would make it private to the owner).
+    static Path newPart(Path target) throws IOException {
+        while (true) {
+            Path part = target.resolveSibling("." + target.getFileName() + "."
+                    + Long.toHexString(ThreadLocalRandom.current().nextLong() >>> 1) + ".part");
+            try {
+                Files.newByteChannel(part, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+                return part;
+            } catch (FileAlreadyExistsException e) {
+                // taken; draw another name
+            }
+        }
+    }
+
+    // Deletes hidden .part files in dir that no copy or unpack has written
+    // to for an hour; they were left by a process that died mid-copy.
+    static void removeStaleParts(Path dir, Consumer<String> logger) {
+        long cutoff = System.currentTimeMillis() - STALE_PART_MILLIS;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, ".*.part")) {
+            for (Path part : stream) {
+                try {
+                    if (Files.getLastModifiedTime(part, LinkOption.NOFOLLOW_LINKS).toMillis() < cutoff
+                            && Files.deleteIfExists(part)) {
+                        SortLog.log(logger, SortLog.Level.INFO, "Removed leftover partial copy {}", part, null);
+                    }
+                } catch (IOException e) {
+                    SortLog.log(logger, SortLog.Level.WARN, "Cannot remove leftover partial copy {}: {}",
+                            part, e.getMessage());
+                }
+            }
+        } catch (IOException | DirectoryIteratorException e) {
+            // not listable: nothing to clean
+        }
+    }
+
+    private void throttle(long bytesCopied, long startNanos) throws InterruptedIOException {
+        if (bytesPerSecond == 0) return;
+        long expectedMillis = bytesCopied * 1000L / bytesPerSecond;
+        long aheadMillis = expectedMillis - (System.nanoTime() - startNanos) / 1_000_000L;
+        if (aheadMillis <= 0) return;
+        try {
+            Thread.sleep(aheadMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Copy interrupted");
+        }
+    }
+}
+
+// Target folders known to exist, so a run creates each one once instead of
+// calling Files.createDirectories before every move. Safe to share between
+// threads and between runs; entries are dropped when a move into the folder
+// fails with NoSuchFileException.
+final class DirectoryCache {
+    private final Set<Path> known = ConcurrentHashMap.newKeySet();
+
+    // Returns true if the file system had to be consulted.
+    boolean ensureExists(Path dir) throws IOException {
+        if (known.contains(dir)) return false;
+        Files.createDirectories(dir);
+        known.add(dir);
+        return true;
+    }
+
+    void invalidate(Path dir) {
+        known.remove(dir);
+    }
+
+    void clear() {
+        known.clear();
+    }
+}
+
+// Watches the source folder and sorts files as they appear, instead of
+// rescanning the whole folder on a timer. A file is only moved once its size
+// has stayed the same for the quiet period, so downloads still being written
+// are left alone. If the event queue overflows we fall back to a full scan.
+final class FolderWatcher implements Closeable {
+    // Sorts one batch of settled files and returns when it is done.
+    interface BatchSorter {
+        void sort(java.util.List<Path> files) throws Exception;
+
+        // Called by close(): the batch in progress stops between files, and
+        // batches handed over later do nothing.
+        void stop();
+    }
+
+    private final Path source;
+    private final BatchSorter batches;
+    private final Consumer<String> logger;
+    private final long quietMillis;
+    private final Map<Path, long[]> pending = new java.util.HashMap<>(); // path -> {size, lastChangeMillis}
+    private final WatchService watchService;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    // Sorts on the watcher thread; sorterFactory is called for every batch so
+    // config changes are picked up.
+    FolderWatcher(Path source, Supplier<FileSorter> sorterFactory,
+                  long quietMillis, Consumer<String> logger) throws IOException {
+        this(source, new OwnSorter(sorterFactory, logger), quietMillis, logger);
+    }
+
+    FolderWatcher(Path source, BatchSorter batches, long quietMillis, Consumer<String> logger) throws IOException {
+        this.source = source;
+        this.batches = batches;
+        this.logger = logger;
+        this.quietMillis = quietMillis;
+        this.watchService = source.getFileSystem().newWatchService();
+        try {
+            source.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+        this.thread = new Thread(this::run, "folder-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    private void run() {
+        fullScan(); // files that arrived before we started watching
+        try {
+            while (!closed) {
+                WatchKey key = watchService.poll(Math.max(quietMillis / 2, 100), TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    Path dir = (Path) key.watchable();
+                    boolean overflow = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                        } else {
+                            track(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    if (overflow) {
+                        logger.accept("Watch events overflowed, rescanning " + dir);
+                        fullScan();
+                    }
+                    if (!key.reset()) {
+                        logger.accept("Source folder is no longer accessible, watch stopped: " + dir);
+                        break;
+                    }
+                }
+                sortSettledFiles();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closing
+        }
+    }
+
+    private void track(Path file) {
+        long[] state = pending.get(file);
+        long size = sizeOf(file);
+        if (state == null) {
+            pending.put(file, new long[]{size, System.currentTimeMillis()});
+        } else {
+            state[0] = size;
+            state[1] = System.currentTimeMillis();
+        }
+    }
+
+    // Settled files are sorted as one batch, so they share one journal run.
+    private void sortSettledFiles() {
+        if (pending.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        java.util.List<Path> settled = new java.util.ArrayList<>();
+
+        Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Path, long[]> e = it.next();
+            Path file = e.getKey();
+            long[] state = e.getValue();
+
+            if (!Files.isRegularFile(file)) {
+                it.remove(); // deleted, renamed away, or a directory
+                continue;
+            }
+            long size = sizeOf(file);
+            if (size != state[0]) {
+                state[0] = size;
+                state[1] = now;
+                continue;
+            }
+            if (now - state[1] < quietMillis) continue;
+
+            it.remove();
+            settled.add(file);
+        }
+        if (settled.isEmpty() || closed) return;
+        try {
+            batches.sort(settled);
+        } catch (Exception ex) {
+            logger.accept("Failed to sort " + settled.size() + " file(s): " + ex.getMessage());
+        }
+    }
+
+    // Files already in the folder (at start, or after lost events) wait out
+    // the same quiet period as new ones, so a download still being written
+    // is not moved half-finished.
+    private void fullScan() {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+            for (Path entry : stream) track(entry);
+        } catch (IOException | DirectoryIteratorException ex) {
+            logger.accept("Watch scan failed: " + ex.getMessage());
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    // Stops after the file being moved, never in the middle of a move, and
+    // waits for that.
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        batches.stop();
+        watchService.close(); // wakes the thread if it is waiting for events
+        if (Thread.currentThread() == thread) return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class OwnSorter implements BatchSorter {
+        private final Supplier<FileSorter> sorterFactory;
+        private final Consumer<String> logger;
+        private FileSorter current; // guarded by this
+        private boolean stopped; // guarded by this
+
+        OwnSorter(Supplier<FileSorter> sorterFactory, Consumer<String> logger) {
+            this.sorterFactory = sorterFactory;
+            this.logger = logger;
+        }
+
+        @Override
+        public void sort(java.util.List<Path> files) {
+            FileSorter sorter = sorterFactory.get();
+            synchronized (this) {
+                if (stopped) return;
+                current = sorter;
+            }
+            try {
+                sorter.sortFiles(files, logger);
+            } finally {
+                synchronized (this) {
+                    current = null;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void stop() {
+            stopped = true;
+            if (current != null) current.cancel();
+        }
+    }
+}
+
+// Finds files whose content already exists in the target tree. Candidates
+// are narrowed in stages so most files are never read: same size first, then
+// a SHA-256 of the first and last 64 KiB, and only then a full SHA-256 read
+// through memory-mapped chunks (computed in parallel when several candidates
+// are left). The index of target files and their hashes is kept in
+// <target>/.sorter-hashes, keyed by path, size and mtime, so files already
+// sorted are not hashed again on later runs. The tree itself is listed
+// (one stat per file, no reads) the first time the index is needed; after
+// that the detector keeps it up to date, so one detector per target folder
+// is shared by every run that sorts into it. Files another program puts into
+// the target meanwhile are only seen once a new detector lists the tree.
+final class DuplicateDetector {
+    enum Action { SKIP, HARDLINK, QUARANTINE }
+
+    static final String QUARANTINE_DIR = ".duplicates";
+    private static final String INDEX_FILE = ".sorter-hashes";
+    private static final int EDGE_BYTES = 64 * 1024;
+    private static final long MAP_CHUNK = 64L * 1024 * 1024;
+
+    private final Path targetBase;
+    private final Consumer<String> logger;
+    private Map<Long, java.util.List<Entry>> bySize; // guarded by this
+    private boolean dirty;
+
+    DuplicateDetector(Path targetBase, Consumer<String> logger) {
+        this.targetBase = targetBase.toAbsolutePath().normalize();
+        this.logger = logger;
+    }
+
+    Path quarantineDir() {
+        return targetBase.resolve(QUARANTINE_DIR);
+    }
+
+    // Result of a check: the existing copy, if any, plus the source hashes
+    // computed on the way (reused when the source is registered).
+    static final class Check {
+        Path duplicateOf;
+        byte[] partialHash;
+        byte[] fullHash;
+        private Entry reservation; // set while a new file is on its way in
+        private CompletableFuture<Void> waitFor; // an identical file on its way in
+    }
+
+    // Checks the source and, if it is new, reserves its content until
+    // finish() is called: a file with the same content checked meanwhile
+    // waits for this one to land and then finds it as a duplicate. Files are
+    // hashed without holding the lock; it is only taken to see whether files
+    // of this size were added meanwhile (then the check is repeated) and to
+    // reserve. Nothing is held during the move.
+    Check checkAndReserve(Path source, BasicFileAttributes attrs) throws IOException {
+        Check check = new Check();
+        while (true) {
+            java.util.List<Entry> sameSize = candidates(attrs.size());
+            check(source, attrs, sameSize, check);
+            if (check.waitFor == null) {
+                synchronized (this) {
+                    if (!addedSince(sameSize, attrs.size(), check)) {
+                        if (check.duplicateOf == null) check.reservation = reserve(attrs.size(), check);
+                        return check;
+                    }
+                }
+            }
+            if (check.waitFor != null) check.waitFor.join();
+        }
+    }
+
+    // Whether a file of this size that might match was placed or reserved
+    // since the candidates were listed; sets waitFor for a reservation.
+    private boolean addedSince(java.util.List<Entry> listed, long size, Check check) {
+        java.util.List<Entry> list = index().get(size);
+        if (list == null || list.isEmpty()) return false;
+        Set<Entry> seen = new HashSet<>(listed);
+        boolean added = false;
+        for (Entry entry : list) {
+            if (seen.contains(entry)) continue;
+            if (entry.reserved == null) {
+                added = true; // placed meanwhile: check it like the others
+            } else if (entry.partial == null || check.partialHash == null
+                    || Arrays.equals(entry.partial, check.partialHash)) {
+                check.waitFor = entry.reserved;
+                return true;
+            }
+        }
+        return added;
+    }
+
+    // Ends a reservation; placed is where the file ended up, or null if it
+    // was not moved after all. The reservation is swapped for the placed
+    // file in one step, so a check never sees neither.
+    void finish(Check check, Path placed, BasicFileAttributes attrs) {
+        Entry reservation = check.reservation;
+        if (reservation == null) return;
+        check.reservation = null;
+        synchronized (this) {
+            java.util.List<Entry> list = index().get(attrs.size());
+            if (list != null) list.remove(reservation);
+            if (placed != null) register(placed, attrs, check);
+        }
+        reservation.reserved.complete(null);
+    }
+
+    // Compares the source with the listed candidates. The source's hashes
+    // are kept in check, so a repeated check does not read it again.
+    private void check(Path source, BasicFileAttributes attrs, java.util.List<Entry> sameSize, Check check)
+            throws IOException {
+        check.duplicateOf = null;
+        check.waitFor = null;
+        if (sameSize.isEmpty()) return;
+
+        if (check.partialHash == null) check.partialHash = partialHash(source, attrs.size());
+        java.util.List<Entry> samePartial = new java.util.ArrayList<>();
+        for (Entry candidate : sameSize) {
+            if (candidate.reserved != null) {
+                // reserved before its partial hash was known, or known to match
+                if (candidate.partial == null || Arrays.equals(candidate.partial, check.partialHash)) {
+                    check.waitFor = candidate.reserved;
+                    return;
+                }
+                continue;
+            }
+            byte[] partial = candidate.partialHash(this);
+            if (partial != null && Arrays.equals(partial, check.partialHash)) samePartial.add(candidate);
+        }
+        if (samePartial.isEmpty()) return;
+
+        if (attrs.size() <= 2L * EDGE_BYTES) {
+            check.fullHash = check.partialHash; // the partial hash already covered every byte
+        } else {
+            // hash the source (unless a repeated check has it) and every
+            // remaining candidate at the same time
+            CompletableFuture<byte[]> sourceHash = check.fullHash != null
+                    ? CompletableFuture.completedFuture(check.fullHash)
+                    : CompletableFuture.supplyAsync(() -> fullHashOrNull(source));
+            for (Entry candidate : samePartial) {
+                candidate.startFullHash(this);
+            }
+            check.fullHash = sourceHash.join();
+            if (check.fullHash == null) throw new IOException("Could not read " + source);
+        }
+        for (Entry candidate : samePartial) {
+            byte[] full = candidate.fullHash(this);
+            if (full != null && Arrays.equals(full, check.fullHash) && candidate.unchanged()) {
+                check.duplicateOf = candidate.path;
+                break;
+            }
+        }
+    }
+
+    private synchronized Entry reserve(long size, Check check) {
+        Entry entry = new Entry(null, size, 0);
+        entry.partial = check.partialHash;
+        entry.full = check.fullHash;
+        entry.reserved = new CompletableFuture<>();
+        index().computeIfAbsent(size, k -> new java.util.ArrayList<>()).add(entry);
+        return entry;
+    }
+
+    // Adds a file that now lives in the target tree.
+    synchronized void register(Path target, BasicFileAttributes attrs, Check check) {
+        Entry entry = new Entry(target.toAbsolutePath().normalize(), attrs.size(), attrs.lastModifiedTime().toMillis());
+        entry.partial = check.partialHash;
+        entry.full = check.fullHash;
+        index().computeIfAbsent(attrs.size(), k -> new java.util.ArrayList<>()).add(entry);
+        dirty = true;
+    }
+
+    private synchronized java.util.List<Entry> candidates(long size) throws IOException {
+        java.util.List<Entry> list = index().get(size);
+        return list == null ? Collections.<Entry>emptyList() : new java.util.ArrayList<>(list);
+    }
+
+    private Map<Long, java.util.List<Entry>> index() {
+        if (bySize == null) bySize = loadIndex();
+        return bySize;
+    }
+
+    private Map<Long, java.util.List<Entry>> loadIndex() {
+        // hashes from earlier runs, reused while (size, mtime) still match
+        Map<String, String[]> saved = new java.util.HashMap<>();
+        Path indexFile = targetBase.resolve(INDEX_FILE);
+        if (Files.exists(indexFile)) {
+            try (BufferedReader in = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] parts = line.split("\t", -1);
+                    if (parts.length == 5) saved.put(SortState.unescape(parts[4]), parts);
+                }
+            } catch (IOException e) {
+                SortLog.log(logger, SortLog.Level.WARN, "Could not read duplicate index {}: {}", indexFile, e.getMessage());
+            }
+        }
+
+        Map<Long, java.util.List<Entry>> index = new java.util.HashMap<>();
+        if (!Files.isDirectory(targetBase)) return index;
+        try {
+            Files.walkFileTree(targetBase, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String name = dir.getFileName() == null ? "" : dir.getFileName().toString();
+                    return !dir.equals(targetBase) && name.startsWith(".") ? FileVisitResult.SKIP_SUBTREE
+                            : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (!attrs.isRegularFile() || attrs.size() == 0) return FileVisitResult.CONTINUE;
+                    if (file.getFileName().toString().startsWith(".")) return FileVisitResult.CONTINUE;
+                    Entry entry = new Entry(file, attrs.size(), attrs.lastModifiedTime().toMillis());
+                    String[] old = saved.get(targetBase.relativize(file).toString());
+                    if (old != null && old[0].equals(Long.toString(entry.size))
+                            && old[1].equals(Long.toString(entry.mtime))) {
+                        entry.partial = fromHex(old[2]);
+                        entry.full = fromHex(old[3]);
+                    }
+                    index.computeIfAbsent(entry.size, k -> new java.util.ArrayList<>()).add(entry);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            SortLog.log(logger, SortLog.Level.WARN, "Could not list target folder {}: {}", targetBase, e.getMessage());
+        }
+        return index;
+    }
+
+    // Writes the index if this run hashed or added anything.
+    synchronized void save() throws IOException {
+        if (!dirty || bySize == null) return;
+        StringBuilder out = new StringBuilder();
+        for (java.util.List<Entry> entries : bySize.values()) {
+            for (Entry e : entries) {
+                if (e.partial == null || e.reserved != null) continue; // nothing worth remembering
+                out.append(e.size).append('\t').append(e.mtime).append('\t')
+                        .append(toHex(e.partial)).append('\t').append(toHex(e.full)).append('\t')
+                        .append(SortState.escape(targetBase.relativize(e.path).toString())).append('\n');
+            }
+        }
+        Files.createDirectories(targetBase);
+        Path indexFile = targetBase.resolve(INDEX_FILE);
+        Path tmp = targetBase.resolve(INDEX_FILE + ".tmp");
+        Files.write(tmp, out.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private synchronized void markDirty() {
+        dirty = true;
+    }
+
+    // SHA-256 of the first and last 64 KiB (the whole file if it is smaller).
+    static byte[] partialHash(Path file, long size) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(EDGE_BYTES);
+            if (size <= 2L * EDGE_BYTES) {
+                long position = 0;
+                while (position < size) {
+                    buffer.clear();
+                    int n = channel.read(buffer, position);
+                    if (n < 0) break;
+                    position += n;
+                    buffer.flip();
+                    digest.update(buffer);
+                }
+            } else {
+                readFully(channel, buffer, 0);
+                digest.update(buffer);
+                readFully(channel, buffer, size - EDGE_BYTES);
+                digest.update(buffer);
+            }
+        }
+        return digest.digest();
+    }
+
+    // SHA-256 of the whole file, streamed through memory-mapped chunks.
+    static byte[] fullHash(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_CHUNK) {
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAP_CHUNK, size - position));
+                digest.update(chunk);
+            }
+        }
+        return digest.digest();
+    }
+
+    private static byte[] fullHashOrNull(Path file) {
+        try {
+            return fullHash(file);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) break;
+        }
+        buffer.flip();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        if (bytes == null) return "-";
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String hex) {
+        if (hex.equals("-") || hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    // A file in the target tree; hashes are filled in on first need. A
+    // reservation has no path yet, only the hashes of the file on its way in.
+    private static final class Entry {
+        final Path path;
+        final long size;
+        final long mtime;
+        volatile byte[] partial;
+        volatile byte[] full;
+        CompletableFuture<Void> reserved;
+        private CompletableFuture<byte[]> pendingFull;
+
+        Entry(Path path, long size, long mtime) {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        // Still the file that was hashed; the index outlives a run, so the
+        // file may have been deleted or rewritten since.
+        boolean unchanged() {
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return attrs.size() == size && attrs.lastModifiedTime().toMillis() == mtime;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        byte[] partialHash(DuplicateDetector owner) {
+            if (partial == null) {
+                try {
+                    partial = DuplicateDetector.partialHash(path, size);
+                    owner.markDirty();
+                } catch (IOException e) {
+                    return null; // gone or unreadable: not a usable duplicate
+                }
+            }
+            return partial;
+        }
+
+        synchronized void startFullHash(DuplicateDetector owner) {
+            if (full != null || pendingFull != null) return;
+            pendingFull = CompletableFuture.supplyAsync(() -> fullHashOrNull(path));
+        }
+
+        byte[] fullHash(DuplicateDetector owner) {
+            if (size <= 2L * EDGE_BYTES) return partialHash(owner);
+            CompletableFuture<byte[]> pending;
+            synchronized (this) {
+                pending = pendingFull;
+            }
+            if (full == null && pending != null) {
+                full = pending.join();
+                synchronized (this) {
+                    pendingFull = null;
+                }
+                if (full != null) owner.markDirty();
+            }
+            return full;
+        }
+    }
+}
+
+// Unpacks selected members of zip, tar and tar.gz archives once the archive
+// itself has been sorted. Archives are read as a stream, header after header,
+// through one 64 KiB buffer per archive; unwanted members are read past and
+// never written anywhere. Several archives are unpacked at once on a small
+// pool of their own, and await() waits for them at the end of a run.
+// Archives already unpacked are listed in <target>/.sorter-archives by size,
+// mtime and SHA-256 (taken while streaming), so a copy that comes back is not
+// unpacked again; the file is only hashed again when size and mtime match.
+// What one archive may write is capped, per member and in total, so a
+// compression bomb is stopped instead of filling the disk; such an archive is
+// still listed, so it is not tried again on every run. One extractor per
+// target folder is shared by every sorter into it.
+final class ArchiveExtractor {
+    static final String LEDGER = ".sorter-archives";
+    static final long MAX_MEMBER_BYTES = 4L << 30;
+    static final long MAX_ARCHIVE_BYTES = 16L << 30; // all members of one archive together
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int TAR_BLOCK = 512;
+    private static final int MAX_TAR_HEADER_DATA = 64 * 1024; // long names, pax records
+    private static final int THREADS = Math.min(4, Math.max(2, Runtime.getRuntime().availableProcessors()));
+    // zip names without the UTF-8 flag are CP437 by the spec
+    private static final Charset ZIP_LEGACY = Charset.isSupported("IBM437")
+            ? Charset.forName("IBM437") : StandardCharsets.ISO_8859_1;
+
+    // Receives each regular member. data ends with the member and must not
+    // be closed. Returns false for a member that stays in the archive.
+    interface Sink {
+        boolean extract(String name, long modifiedMillis, InputStream data, Consumer<String> logger) throws IOException;
+    }
+
+    // An archive went over a cap.
+    static final class LimitException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        LimitException(String message) {
+            super(message);
+        }
+    }
+
+    private final Path ledgerFile;
+    private final long maxMemberBytes;
+    private final long maxArchiveBytes;
+    private final ThreadPoolExecutor pool;
+    private Map<String, Set<String>> unpacked; // "size:mtime" -> hashes; loaded on first use, guarded by this
+
+    ArchiveExtractor(Path targetBase) {
+        this(targetBase, MAX_MEMBER_BYTES, MAX_ARCHIVE_BYTES);
+    }
+
+    ArchiveExtractor(Path targetBase, long maxMemberBytes, long maxArchiveBytes) {
+        this.ledgerFile = targetBase.resolve(LEDGER);
+        this.maxMemberBytes = maxMemberBytes;
+        this.maxArchiveBytes = maxArchiveBytes;
+        this.pool = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "archive-extractor");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    static boolean handles(String fileName) {
+        String name = fileName.toLowerCase(Locale.ROOT);
+        return name.endsWith(".zip") || name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz");
+    }
+
+    Future<?> submit(Path archive, Sink sink, Consumer<String> logger) {
+        return pool.submit(() -> unpack(archive, sink, logger));
+    }
+
+    // Waits for the given unpacks (a sorter's own), emptying the queue.
+    static void await(Queue<Future<?>> pending) {
+        Future<?> task;
+        while ((task = pending.poll()) != null) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // unpack() logs its own failures
+            }
+        }
+    }
+
+    private void unpack(Path archive, Sink sink, Consumer<String> logger) {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(archive, BasicFileAttributes.class);
+            long size = attrs.size();
+            long mtime = attrs.lastModifiedTime().toMillis();
+            if (alreadyUnpacked(archive, size, mtime, buffer)) {
+                SortLog.log(logger, SortLog.Level.INFO, "Already unpacked: {}", archive, null);
+                return;
+            }
+            MessageDigest digest = sha256();
+            Budget budget = new Budget(maxMemberBytes, maxArchiveBytes);
+            int count = 0;
+            LimitException limit = null;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(archive), digest)) {
+                String name = archive.getFileName().toString().toLowerCase(Locale.ROOT);
+                try {
+                    if (name.endsWith(".zip")) {
+                        count = readZip(in, budget, sink, logger);
+                    } else if (name.endsWith(".tar")) {
+                        count = readTar(in, buffer, budget, sink, logger);
+                    } else {
+                        try (InputStream gzip = new GZIPInputStream(new Shield(in), BUFFER_BYTES)) {
+                            count = readTar(gzip, buffer, budget, sink, logger);
+                        }
+                    }
+                } catch (LimitException e) {
+                    limit = e;
+                }
+                while (in.read(buffer) != -1) {
+                    // the hash covers the whole file, past the last member
+                }
+            }
+            record(size, mtime, toHex(digest.digest()), archive);
+            if (limit != null) {
+                SortLog.log(logger, SortLog.Level.WARN, "Stopped unpacking {}: {}", archive, limit.getMessage());
+            } else {
+                SortLog.log(logger, SortLog.Level.INFO, "Unpacked {} file(s) from {}", count, archive);
+            }
+        } catch (IOException | RuntimeException e) {
+            SortLog.log(logger, SortLog.Level.WARN, "Failed to unpack {}: {}", archive, e.getMessage());
+        }
+    }
+
+    private static int readZip(InputStream in, Budget budget, Sink sink, Consumer<String> logger) throws IOException {
+        int count = 0;
+        try (ZipInputStream zip = new ZipInputStream(new Shield(in), ZIP_LEGACY)) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                if (entry.isDirectory()) continue;
+                String name = memberName(zipName(entry.getName()));
+                if (name != null && sink.extract(name, entry.getTime(), new Capped(zip, budget), logger)) count++;
+            }
+        }
+        return count;
+    }
+
+    // Many tools write UTF-8 names without setting the flag. A name read as
+    // CP437 whose bytes are valid UTF-8 (and not plain ASCII) is taken as
+    // UTF-8; flagged names were already decoded as UTF-8 and do not round-trip.
+    static String zipName(String name) {
+        boolean ascii = true;
+        for (int i = 0; i < name.length() && ascii; i++) ascii = name.charAt(i) < 0x80;
+        if (ascii) return name;
+        try {
+            ByteBuffer bytes = ZIP_LEGACY.newEncoder()
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .encode(CharBuffer.wrap(name));
+            return StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(bytes).toString();
+        } catch (CharacterCodingException e) {
+            return name;
+        }
+    }
+
+    // ustar, with GNU long names and pax "path" records
+    private static int readTar(InputStream in, byte[] buffer, Budget budget, Sink sink,
+                               Consumer<String> logger) throws IOException {
+        byte[] header = new byte[TAR_BLOCK];
+        String longName = null;
+        int count = 0;
+        while (readBlock(in, header)) {
+            if (isZero(header)) break; // end of archive
+            long size = number(header, 124, 12);
+            long padding = (TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK;
+            byte type = header[156];
+            if (type == 'L' || type == 'x') {
+                String data = new String(readHeaderData(in, size), StandardCharsets.UTF_8);
+                longName = type == 'L' ? trimNul(data) : paxPath(data, longName);
+                skip(in, padding, buffer);
+                continue;
+            }
+            String name = longName != null ? longName : headerName(header);
+            longName = null;
+            String member = type == '0' || type == 0 || type == '7' ? memberName(name) : null;
+            if (member != null) {
+                Member data = new Member(in, size);
+                if (sink.extract(member, number(header, 136, 12) * 1000, new Capped(data, budget), logger)) count++;
+                skip(data, data.remaining, buffer);
+            } else {
+                skip(in, size, buffer);
+            }
+            skip(in, padding, buffer);
+        }
+        return count;
+    }
+
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int n = 0;
+        while (n < block.length) {
+            int read = in.read(block, n, block.length - n);
+            if (read == -1) {
+                if (n == 0) return false;
+                throw new EOFException("Truncated tar header");
+            }
+            n += read;
+        }
+        return true;
+    }
+
+    private static byte[] readHeaderData(InputStream in, long size) throws IOException {
+        if (size > MAX_TAR_HEADER_DATA) throw new IOException("Tar header entry too large: " + size + " bytes");
+        byte[] data = new byte[(int) size];
+        int n = 0;
+        while (n < data.length) {
+            int read = in.read(data, n, data.length - n);
+            if (read == -1) throw new EOFException("Truncated tar entry");
+            n += read;
+        }
+        return data;
+    }
+
+    // Reads rather than skips, so every byte passes through the digest.
+    private static void skip(InputStream in, long bytes, byte[] buffer) throws IOException {
+        while (bytes > 0) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, bytes));
+            if (read == -1) throw new EOFException("Truncated archive");
+            bytes -= read;
+        }
+    }
+
+    private static boolean isZero(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    // Octal, or base-256 when the high bit of the first byte is set (GNU).
+    private static long number(byte[] header, int offset, int length) throws IOException {
+        if ((header[offset] & 0x80) != 0) {
+            long value = header[offset] & 0x7F;
+            for (int i = 1; i < length; i++) value = (value << 8) | (header[offset + i] & 0xFF);
+            return value;
+        }
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = header[i];
+            if (b == 0 || b == ' ') {
+                if (value == 0 && b == ' ') continue; // leading spaces
+                break;
+            }
+            if (b < '0' || b > '7') throw new IOException("Bad number in tar header");
+            value = value * 8 + (b - '0');
+        }
+        return value;
+    }
+
+    private static String headerName(byte[] header) {
+        String name = field(header, 0, 100);
+        if (field(header, 257, 5).equals("ustar")) {
+            String prefix = field(header, 345, 155);
+            if (!prefix.isEmpty()) name = prefix + "/" + name;
+        }
+        return name;
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) end++;
+        return new String(header, offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    private static String trimNul(String text) {
+        int nul = text.indexOf('\0');
+        return nul >= 0 ? text.substring(0, nul) : text;
+    }
+
+    // pax records are "<length> <key>=<value>\n"
+    private static String paxPath(String records, String fallback) {
+        for (String record : records.split("\n")) {
+            int space = record.indexOf(' ');
+            if (space > 0 && record.startsWith("path=", space + 1)) return record.substring(space + 6);
+        }
+        return fallback;
+    }
+
+    // The file name alone: folders inside the archive are dropped, so a
+    // member can never land outside its category folder. Hidden files and
+    // resource forks (._name) are left in the archive.
+    static String memberName(String path) {
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        String name = path.substring(slash + 1);
+        if (name.isEmpty() || name.startsWith(".") || name.indexOf('\0') >= 0) return null;
+        return name;
+    }
+
+    private boolean alreadyUnpacked(Path archive, long size, long mtime, byte[] buffer) throws IOException {
+        Set<String> hashes;
+        synchronized (this) {
+            loadLedger();
+            hashes = unpacked.get(size + ":" + mtime);
+            if (hashes == null) return false;
+            hashes = new HashSet<>(hashes);
+        }
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(archive), digest)) {
+            while (in.read(buffer) != -1) {
+                // hashing
+            }
+        }
+        return hashes.contains(toHex(digest.digest()));
+    }
+
+    private synchronized void record(long size, long mtime, String hash, Path archive) throws IOException {
+        loadLedger();
+        unpacked.computeIfAbsent(size + ":" + mtime, k -> new HashSet<>()).add(hash);
+        String line = size + "\t" + mtime + "\t" + hash + "\t" + archive.getFileName() + "\n";
+        Files.write(ledgerFile, line.getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    // guarded by this
+    private void loadLedger() throws IOException {
+        if (unpacked != null) return;
+        Map<String, Set<String>> loaded = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(ledgerFile, StandardCharsets.UTF_8)) {
+            for (String line; (line = in.readLine()) != null; ) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 3) continue; // torn last line
+                loaded.computeIfAbsent(fields[0] + ":" + fields[1], k -> new HashSet<>()).add(fields[2]);
+            }
+        } catch (NoSuchFileException e) {
+            // nothing unpacked yet
+        }
+        unpacked = loaded;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    // Keeps the archive stream open when a reader on top of it is closed.
+    private static class Shield extends FilterInputStream {
+        Shield(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // The caps for one archive and what is left of its total.
+    private static final class Budget {
+        final long memberBytes;
+        final long archiveBytes;
+        long left;
+
+        Budget(long memberBytes, long archiveBytes) {
+            this.memberBytes = memberBytes;
+            this.archiveBytes = archiveBytes;
+            this.left = archiveBytes;
+        }
+    }
+
+    // What the sink reads of one member, counted against the member cap and
+    // the archive's remaining budget; going over aborts the archive.
+    private static final class Capped extends Shield {
+        private final Budget budget;
+        private long read;
+
+        Capped(InputStream in, Budget budget) {
+            super(in);
+            this.budget = budget;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) count(n);
+            return n;
+        }
+
+        private void count(int n) throws LimitException {
+            read += n;
+            budget.left -= n;
+            if (read > budget.memberBytes) {
+                throw new LimitException("a member is larger than " + budget.memberBytes + " bytes");
+            }
+            if (budget.left < 0) throw new LimitException("members add up to more than " + budget.archiveBytes + " bytes");
+        }
+    }
+
+    // One tar member: ends after size bytes.
+    private static final class Member extends Shield {
+        long remaining;
+
+        Member(InputStream in, long size) {
+            super(in);
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) remaining -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            return 0; // callers read instead, so the digest sees every byte
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
+
+// Write-ahead journal of sort runs, one file per run in <target>/.sorter-journal.
+// Paths are stored absolute, so an undo may run from any working directory.
+// Before a batch of files is moved, their planned targets are appended as P
+// records and forced to disk with a single fsync for the whole batch. Each
+// finished move appends a D record (source, final target), and a duplicate
+// replaced by a link to an existing file an H record; those are written as
+// they happen (so they survive the process dying) but only forced along with
+// the next batch. A run that ends gets an E record.
+//
+// A P target is only where the file was meant to go: a name collision may
+// have put it next to it, or the name may belong to a file that was there
+// before. So only D and H records are trusted. If the process dies mid-run,
+// the next run finds a journal without E and closes it, reporting planned
+// moves whose source is gone but that have no D record. Files that were not
+// moved are still in the source folder and are simply sorted again.
+// undoLast() moves the files of the newest run back.
+final class MoveJournal {
+    static final String DIR = ".sorter-journal";
+    static final int BATCH_SIZE = 256;
+    private static final int KEEP_RUNS = 20;
+
+    // A journal write failed, so the batch it was for was not moved.
+    static final class WriteException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        WriteException(String message, IOException cause) {
+            super(message, cause);
+        }
+    }
+
+    private final Path dir;
+    private final Consumer<String> logger;
+    private final StringBuilder pending = new StringBuilder(); // guarded by this
+    private FileChannel channel; // open while a run is in progress; guarded by this
+    private Path current;
+
+    MoveJournal(Path targetBase, Consumer<String> logger) {
+        this.dir = targetBase.resolve(DIR);
+        this.logger = logger;
+    }
+
+    // Opens a journal for a new run, after completing any interrupted one.
+    // Does nothing if a run is already open.
+    synchronized void begin() throws IOException {
+        if (channel != null) return;
+        Files.createDirectories(dir);
+        for (Path run : runs(".log")) recover(run);
+        prune();
+        for (long stamp = System.currentTimeMillis(); channel == null; stamp++) {
+            Path file = dir.resolve(String.format(Locale.ROOT, "run-%013d.log", stamp));
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+                current = file;
+            } catch (FileAlreadyExistsException e) {
+                // another run started in the same millisecond
+            }
+        }
+        // held until end(), so other processes (and other journals in this
+        // one) can tell a live run from an interrupted one
+        if (channel.tryLock() == null) throw new IOException("Could not lock " + current);
+    }
+
+    // Group commit: one write and one fsync for the whole batch.
+    synchronized void plan(Path[] sources, Path[] targets, int count) throws WriteException {
+        if (channel == null) throw new IllegalStateException("journal is not open");
+        for (int i = 0; i < count; i++) {
+            pending.append("P\t").append(SortState.escape(sources[i].toAbsolutePath().toString()))
+                    .append('\t').append(SortState.escape(targets[i].toAbsolutePath().toString())).append('\n');
+        }
+        try {
+            writePending();
+            channel.force(false);
+        } catch (IOException e) {
+            throw new WriteException("Could not write move journal " + current + ": " + e.getMessage(), e);
+        }
+    }
+
+    synchronized void moved(Path source, Path target) throws IOException {
+        record('D', source, target);
+    }
+
+    synchronized void replacedByLink(Path source, Path existing) throws IOException {
+        record('H', source, existing);
+    }
+
+    private void record(char type, Path source, Path target) throws IOException {
+        if (channel == null) return;
+        pending.append(type).append('\t').append(SortState.escape(source.toAbsolutePath().toString()))
+                .append('\t').append(SortState.escape(target.toAbsolutePath().toString())).append('\n');
+        writePending();
+    }
+
+    synchronized void end() throws IOException {
+        if (channel == null) return;
+        try {
+            pending.append("E\n");
+            writePending();
+            channel.force(false);
+        } finally {
+            channel.close(); // also releases the lock
+            channel = null;
+            pending.setLength(0);
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (pending.length() == 0) return;
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(CharBuffer.wrap(pending));
+        pending.setLength(0);
+        while (bytes.hasRemaining()) channel.write(bytes);
+    }
+
+    // Moves the files of the newest run that has not been undone back to
+    // where they came from, in parallel. Files whose source path has been
+    // taken again are left where they are and counted as failed. Once
+    // everything is back the journal is renamed to .undone, so the next call
+    // undoes the run before it. Returns {restored, failed}.
+    int[] undoLast(int workers, Consumer<String> logger) throws IOException {
+        Path run = null;
+        synchronized (this) {
+            if (Files.isDirectory(dir)) {
+                java.util.List<Path> runs = runs(".log");
+                for (Path candidate : runs) recover(candidate);
+                for (int i = runs.size() - 1; i >= 0 && run == null; i--) {
+                    if (ended(runs.get(i))) run = runs.get(i); // runs still in progress are skipped
+                }
+            }
+        }
+        if (run == null) {
+            logger.accept("No sort run to undo");
+            return new int[]{0, 0};
+        }
+
+        java.util.List<String[]> done = new java.util.ArrayList<>();
+        for (String[] record : read(run)) {
+            if (record[0].equals("D") || record[0].equals("H")) done.add(record);
+        }
+        logger.accept("Undoing " + done.size() + " move(s) from " + run.getFileName());
+
+        AtomicInteger restored = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = FileSorter.newWorkerExecutor(Math.max(1, workers));
+        try {
+            for (int i = done.size() - 1; i >= 0; i--) {
+                String[] record = done.get(i);
+                pool.execute(() -> {
+                    Path source = Paths.get(record[1]);
+                    Path target = Paths.get(record[2]);
+                    try {
+                        if (restore(record[0].equals("H"), source, target)) restored.incrementAndGet();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        SortLog.log(logger, SortLog.Level.WARN, "Failed to restore {}: {}", source, e.toString());
+                    }
+                });
+            }
+        } finally {
+            pool.shutdown();
+            FileSorter.awaitQuietly(pool);
+        }
+
+        if (failed.get() == 0) {
+            Files.move(run, run.resolveSibling(run.getFileName().toString().replace(".log", ".undone")));
+        }
+        logger.accept("Undo finished: " + restored.get() + " file(s) restored, " + failed.get() + " failed");
+        return new int[]{restored.get(), failed.get()};
+    }
+
+    // Returns false if the file was already back (an earlier, partial undo).
+    private static boolean restore(boolean link, Path source, Path target) throws IOException {
+        if (Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+            if (link || !Files.exists(target, LinkOption.NOFOLLOW_LINKS)) return false;
+            throw new FileAlreadyExistsException(source.toString(), null, "source path is taken again");
+        }
+        Path parent = source.getParent();
+        if (parent != null) Files.createDirectories(parent); // subfolder may have been removed
+        if (!link) {
+            CrossDeviceTransfer.renameNoReplace(target, source);
+            return true;
+        }
+        try {
+            Files.createLink(source, target);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(target, source, StandardCopyOption.COPY_ATTRIBUTES); // e.g. another device
+        }
+        return true;
+    }
+
+    // Completes a journal left without an E record by a run that died.
+    // Journals still locked belong to a live run and are left alone.
+    private void recover(Path run) throws IOException {
+        if (ended(run) || (run.equals(current) && channel != null)) return;
+        try (FileChannel file = FileChannel.open(run, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock;
+            try {
+                lock = file.tryLock();
+            } catch (OverlappingFileLockException e) {
+                return; // held by a run in this process
+            }
+            if (lock == null) return; // held by another process
+
+            // a record cut off mid-write may still split into three fields,
+            // so it is dropped rather than read as a whole one
+            long size = completeLength(file);
+            file.truncate(size);
+            Set<String> planned = new LinkedHashSet<>();
+            int recorded = 0;
+            for (String[] record : read(run)) {
+                if (record[0].equals("P")) {
+                    planned.add(record[1]);
+                } else {
+                    planned.remove(record[1]);
+                    recorded++;
+                }
+            }
+            // the planned target proves nothing, so a move without its D
+            // record stays unrecorded and cannot be undone
+            java.util.List<String> unrecorded = new java.util.ArrayList<>();
+            for (String source : planned) {
+                if (!Files.exists(Paths.get(source), LinkOption.NOFOLLOW_LINKS)) unrecorded.add(source);
+            }
+            ByteBuffer bytes = StandardCharsets.UTF_8.encode("E\n");
+            long position = size;
+            while (bytes.hasRemaining()) position += file.write(bytes, position);
+            file.force(false);
+            SortLog.log(logger, SortLog.Level.INFO, "Closed interrupted sort run {}: {} move(s) recorded",
+                    run.getFileName(), recorded);
+            if (!unrecorded.isEmpty()) {
+                SortLog.log(logger, SortLog.Level.WARN, "{} file(s) of run {} left the source folder without a record and cannot be undone",
+                        unrecorded.size(), run.getFileName());
+                for (String source : unrecorded) SortLog.log(logger, SortLog.Level.DEBUG, "Not recorded: {}", source, null);
+            }
+        }
+    }
+
+    // Length up to and including the last newline.
+    private static long completeLength(FileChannel file) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(4096);
+        for (long end = file.size(); end > 0; ) {
+            long start = Math.max(0, end - chunk.capacity());
+            chunk.clear();
+            chunk.limit((int) (end - start));
+            while (chunk.hasRemaining() && file.read(chunk, start + chunk.position()) > 0) {
+                // fill the chunk
+            }
+            for (int i = chunk.position() - 1; i >= 0; i--) {
+                if (chunk.get(i) == '\n') return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    private static boolean ended(Path run) throws IOException {
+        try (FileChannel file = FileChannel.open(run, StandardOpenOption.READ)) {
+            ByteBuffer tail = ByteBuffer.allocate(2);
+            long size = file.size();
+            if (size < 2) return false;
+            file.read(tail, size - 2);
+            return tail.get(0) == 'E' && tail.get(1) == '\n';
+        }
+    }
+
+    // Records with all fields; a torn last line with fewer is ignored.
+    private static java.util.List<String[]> read(Path run) throws IOException {
+        java.util.List<String[]> records = new java.util.ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(run, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 3 || parts[0].length() != 1) continue;
+                parts[1] = SortState.unescape(parts[1]);
+                parts[2] = SortState.unescape(parts[2]);
+                records.add(parts);
+            }
+        }
+        return records;
+    }
+
+    // Oldest first.
+    private java.util.List<Path> runs(String suffix) throws IOException {
+        java.util.List<Path> runs = new java.util.ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "run-*" + suffix)) {
+            for (Path run : stream) runs.add(run);
+        }
+        Collections.sort(runs);
+        return runs;
+    }
+
+    private void prune() throws IOException {
+        java.util.List<Path> runs = runs("");
+        for (int i = 0; i < runs.size() - KEEP_RUNS; i++) Files.deleteIfExists(runs.get(i));
+    }
+}
+
+// Detects a file's type from its first bytes, for files whose extension does
+// not tell us. Reads at most SNIFF_BYTES with a single positional read into a
+// pooled direct buffer and matches them against a table of magic numbers
+// bucketed by first byte. Verdicts are cached in an LRU keyed by
+// (file key/inode, size, mtime), so an unchanged file is never read twice.
+final class ContentSniffer {
+    static final int SNIFF_BYTES = 512; // enough for the tar header magic at 257
+
+    // {extension, offset, magic bytes, [offset, magic bytes]...}; more specific entries first
+    private static final Object[][] SIGNATURES = {
+            {"pdf", 0, "%PDF-"},
+            {"png", 0, new int[]{0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A}},
+            {"jpg", 0, new int[]{0xFF, 0xD8, 0xFF}},
+            {"gif", 0, "GIF87a"},
+            {"gif", 0, "GIF89a"},
+            {"webp", 0, "RIFF", 8, "WEBP"},
+            {"wav", 0, "RIFF", 8, "WAVE"},
+            {"avi", 0, "RIFF", 8, "AVI "},
+            {"tiff", 0, new int[]{'I', 'I', 0x2A, 0x00}},
+            {"tiff", 0, new int[]{'M', 'M', 0x00, 0x2A}},
+            {"ico", 0, new int[]{0x00, 0x00, 0x01, 0x00}},
+            {"bmp", 0, "BM"},
+            {"mov", 4, "ftypqt"},
+            {"m4a", 4, "ftypM4A"},
+            {"mp4", 4, "ftyp"},
+            {"mkv", 0, new int[]{0x1A, 0x45, 0xDF, 0xA3}},
+            {"flv", 0, "FLV"},
+            {"mp3", 0, "ID3"},
+            {"ogg", 0, "OggS"},
+            {"flac", 0, "fLaC"},
+            {"zip", 0, new int[]{'P', 'K', 0x03, 0x04}},
+            {"zip", 0, new int[]{'P', 'K', 0x05, 0x06}}, // empty archive
+            {"rar", 0, new int[]{'R', 'a', 'r', '!', 0x1A, 0x07}},
+            {"7z", 0, new int[]{'7', 'z', 0xBC, 0xAF, 0x27, 0x1C}},
+            {"gz", 0, new int[]{0x1F, 0x8B}},
+            {"bz2", 0, "BZh"},
+            {"xz", 0, new int[]{0xFD, '7', 'z', 'X', 'Z', 0x00}},
+            {"tar", 257, "ustar"},
+            {"deb", 0, "!<arch>\ndebian"},
+            {"rpm", 0, new int[]{0xED, 0xAB, 0xEE, 0xDB}},
+            {"doc", 0, new int[]{0xD0, 0xCF, 0x11, 0xE0, 0xA1, 0xB1, 0x1A, 0xE1}},
+            {"rtf", 0, "{\\rtf"},
+            {"exe", 0, "MZ"},
+    };
+
+    private static final String NONE = ""; // cached "no match"
+
+    private final Signature[][] byFirstByte = new Signature[256][];
+    private final Signature[] anyFirstByte; // signatures that do not start at offset 0
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final Map<VerdictKey, String> verdicts;
+
+    ContentSniffer(int cacheSize) {
+        java.util.List<java.util.List<Signature>> buckets = new java.util.ArrayList<>();
+        for (int i = 0; i < 256; i++) buckets.add(new java.util.ArrayList<>());
+        java.util.List<Signature> floating = new java.util.ArrayList<>();
+        for (Object[] row : SIGNATURES) {
+            Signature sig = Signature.compile(row);
+            if (sig.offsets[0] == 0) buckets.get(sig.magics[0][0] & 0xFF).add(sig);
+            else floating.add(sig);
+        }
+        for (int i = 0; i < 256; i++) {
+            if (!buckets.get(i).isEmpty()) byFirstByte[i] = buckets.get(i).toArray(new Signature[0]);
+        }
+        anyFirstByte = floating.toArray(new Signature[0]);
+
+        buffers = new ArrayBlockingQueue<>(Math.max(2, Runtime.getRuntime().availableProcessors() * 2));
+        verdicts = Collections.synchronizedMap(new LinkedHashMap<VerdictKey, String>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<VerdictKey, String> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    // Extension matching the file's content, e.g. "pdf", or null if unknown.
+    String detect(Path file, BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || attrs.size() == 0) return null;
+        Object fileKey = attrs.fileKey();
+        VerdictKey key = new VerdictKey(fileKey != null ? fileKey : file.toAbsolutePath().toString(),
+                attrs.size(), attrs.lastModifiedTime().toMillis());
+        String cached = verdicts.get(key);
+        if (cached != null) return cached == NONE ? null : cached;
+
+        String verdict;
+        ByteBuffer buffer = acquireBuffer();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            channel.read(buffer, 0); // one read; a short read just limits what can match
+            buffer.flip();
+            verdict = match(buffer);
+        } catch (IOException e) {
+            return null; // not cached: it may be readable next time
+        } finally {
+            releaseBuffer(buffer);
+        }
+        verdicts.put(key, verdict != null ? verdict : NONE);
+        return verdict;
+    }
+
+    String match(ByteBuffer header) {
+        if (header.remaining() == 0) return null;
+        // magic at a fixed offset (ftyp, ustar) is checked first: it is more
+        // specific than short prefixes like the ICO header an MP4 may start with
+        for (Signature sig : anyFirstByte) {
+            if (sig.matches(header)) return sig.extension;
+        }
+        Signature[] candidates = byFirstByte[header.get(0) & 0xFF];
+        if (candidates != null) {
+            for (Signature sig : candidates) {
+                if (sig.matches(header)) return sig.extension;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(SNIFF_BYTES);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        buffers.offer(buffer); // dropped if the pool is full
+    }
+
+    private static final class Signature {
+        final String extension;
+        final int[] offsets;
+        final byte[][] magics;
+
+        private Signature(String extension, int[] offsets, byte[][] magics) {
+            this.extension = extension;
+            this.offsets = offsets;
+            this.magics = magics;
+        }
+
+        static Signature compile(Object[] row) {
+            int parts = (row.length - 1) / 2;
+            int[] offsets = new int[parts];
+            byte[][] magics = new byte[parts][];
+            for (int p = 0; p < parts; p++) {
+                offsets[p] = (Integer) row[1 + 2 * p];
+                Object magic = row[2 + 2 * p];
+                if (magic instanceof String) {
+                    magics[p] = ((String) magic).getBytes(StandardCharsets.ISO_8859_1);
+                } else {
+                    int[] values = (int[]) magic;
+                    magics[p] = new byte[values.length];
+                    for (int i = 0; i < values.length; i++) magics[p][i] = (byte) values[i];
+                }
+            }
+            return new Signature((String) row[0], offsets, magics);
+        }
+
+        boolean matches(ByteBuffer header) {
+            for (int p = 0; p < offsets.length; p++) {
+                int offset = offsets[p];
+                byte[] magic = magics[p];
+                if (header.limit() < offset + magic.length) return false;
+                for (int i = 0; i < magic.length; i++) {
+                    if (header.get(offset + i) != magic[i]) return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class VerdictKey {
+        final Object fileKey;
+        final long size;
+        final long mtime;
+
+        VerdictKey(Object fileKey, long size, long mtime) {
+            this.fileKey = fileKey;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof VerdictKey)) return false;
+            VerdictKey other = (VerdictKey) o;
+            return size == other.size && mtime == other.mtime && fileKey.equals(other.fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return (fileKey.hashCode() * 31 + Long.hashCode(size)) * 31 + Long.hashCode(mtime);
+        }
+    }
+}
+
+// Immutable category configuration: folder -> extensions plus the extension
+// index compiled from it. Sorters share a snapshot instead of copying it; an
+// edit makes a new snapshot with the next version number.
+// Stored as properties, "category.<folder>=ext,ext" plus "version", the same
+// keys FileSorterCLI reads from its --config file.
+final class CategoryConfig {
+    private static final CategoryConfig DEFAULTS = of(FileSorter.defaultCategories());
+
+    private final long version;
+    private final Map<String, java.util.List<String>> categories;
+    private final ExtensionIndex index;
+
+    private CategoryConfig(long version, Map<String, java.util.List<String>> categories) {
+        java.util.List<String> names = new java.util.ArrayList<>(categories.keySet());
+        names.sort(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+        Map<String, java.util.List<String>> copy = new java.util.LinkedHashMap<>();
+        for (String name : names) {
+            java.util.List<String> exts = categories.get(name);
+            copy.put(name, Collections.unmodifiableList(exts == null
+                    ? new java.util.ArrayList<>() : new java.util.ArrayList<>(exts)));
+        }
+        copy.putIfAbsent("Others", Collections.<String>emptyList());
+        this.version = version;
+        this.categories = Collections.unmodifiableMap(copy);
+        this.index = ExtensionIndex.build(this.categories);
+    }
+
+    static CategoryConfig of(Map<String, java.util.List<String>> categories) {
+        return new CategoryConfig(0, categories);
+    }
+
+    static CategoryConfig defaults() {
+        return DEFAULTS;
+    }
+
+    // The next version, with these categories.
+    CategoryConfig withCategories(Map<String, java.util.List<String>> categories) {
+        return new CategoryConfig(version + 1, categories);
+    }
+
+    long version() {
+        return version;
+    }
+
+    // Unmodifiable, folders in name order.
+    Map<String, java.util.List<String>> categories() {
+        return categories;
+    }
+
+    ExtensionIndex index() {
+        return index;
+    }
+
+    // A mutable copy to edit; pass it to withCategories when done.
+    Map<String, java.util.List<String>> draft() {
+        Map<String, java.util.List<String>> draft = new java.util.LinkedHashMap<>();
+        for (Map.Entry<String, java.util.List<String>> e : categories.entrySet()) {
+            draft.put(e.getKey(), new java.util.ArrayList<>(e.getValue()));
+        }
+        return draft;
+    }
+
+    // The "category.*" keys of the given options, or null if there are none.
+    static CategoryConfig fromProperties(Properties options) {
+        Map<String, java.util.List<String>> categories = new java.util.HashMap<>();
+        for (String key : options.stringPropertyNames()) {
+            if (!key.startsWith("category.")) continue;
+            java.util.List<String> exts = new java.util.ArrayList<>();
+            for (String ext : options.getProperty(key).split(",")) {
+                ext = ext.trim().toLowerCase(Locale.ROOT);
+                if (ext.startsWith(".")) ext = ext.substring(1);
+                if (!ext.isEmpty()) exts.add(ext);
+            }
+            categories.put(key.substring("category.".length()), exts);
+        }
+        if (categories.isEmpty()) return null;
+        long version;
+        try {
+            version = Long.parseLong(options.getProperty("version", "0").trim());
+        } catch (NumberFormatException e) {
+            version = 0;
+        }
+        return new CategoryConfig(version, categories);
+    }
+
+    // The saved configuration, or the defaults if there is none yet.
+    static CategoryConfig load(Path file) throws IOException {
+        Properties stored = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            stored.load(in);
+        } catch (NoSuchFileException e) {
+            return defaults();
+        }
+        CategoryConfig config = fromProperties(stored);
+        return config != null ? config : defaults();
+    }
+
+    // Written to a temporary file and renamed over the old one, so a crash
+    // leaves either the old or the new configuration. "Others" is always
+    // written, even empty, so a configuration without other categories is not
+    // read back as the defaults.
+    void save(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = dir.resolve(file.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            out.write("version=" + version + "\n");
+            for (Map.Entry<String, java.util.List<String>> e : categories.entrySet()) {
+                out.write(escape("category." + e.getKey()) + "=" + escape(String.join(",", e.getValue())) + "\n");
+            }
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // properties escaping for keys and values
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == '=' || c == ':' || c == '#' || c == '!' || c == ' ') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20 || c > 0x7e) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// Immutable extension -> category lookup. Keys are stored lower-cased; lookups
+// hash and compare the extension in place inside the file name, so classifying
+// a file allocates nothing.
+// If two categories claim the same extension, the category whose name sorts
+// first (case-insensitive, then exact) wins. "Others" never claims extensions.
+final class ExtensionIndex {
+    static final ExtensionIndex EMPTY = new ExtensionIndex(new String[1], new String[1]);
+
+    private final String[] keys;
+    private final String[] values;
+    private final int mask;
+
+    private ExtensionIndex(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+        this.mask = keys.length - 1;
+    }
+
+    static ExtensionIndex build(Map<String, java.util.List<String>> categories) {
+        java.util.List<String> names = new java.util.ArrayList<>(categories.keySet());
+        names.sort(String.CASE_INSENSITIVE_ORDER.thenComparing(Comparator.naturalOrder()));
+
+        Map<String, String> owners = new java.util.LinkedHashMap<>();
+        for (String category : names) {
+            if (category.equals("Others")) continue;
+            java.util.List<String> exts = categories.get(category);
+            if (exts == null) continue;
+            for (String ext : exts) {
+                if (ext == null) continue;
+                String key = ext.trim().toLowerCase(Locale.ROOT);
+                if (key.startsWith(".")) key = key.substring(1);
+                if (key.isEmpty()) continue;
+                owners.putIfAbsent(key, category);
+            }
+        }
+
+        // power-of-two table kept at most half full
+        int capacity = 2;
+        while (capacity < owners.size() * 2) capacity <<= 1;
+        String[] keys = new String[capacity];
+        String[] values = new String[capacity];
+        for (Map.Entry<String, String> e : owners.entrySet()) {
+            String key = e.getKey();
+            int slot = hash(key, 0, key.length()) & (capacity - 1);
+            while (keys[slot] != null) slot = (slot + 1) & (capacity - 1);
+            keys[slot] = key;
+            values[slot] = e.getValue();
+        }
+        return new ExtensionIndex(keys, values);
+    }
+
+    // Category for the extension of the given file name, or null if unclaimed.
+    String categoryFor(String filename) {
+        if (filename == null) return null;
+        int dotIndex = filename.lastIndexOf('.');
+        if (dotIndex == -1 || dotIndex == filename.length() - 1) return null;
+        return lookup(filename, dotIndex + 1, filename.length());
+    }
+
+    // Category for a bare extension such as "pdf", or null if unclaimed.
+    String categoryForExtension(String ext) {
+        if (ext == null || ext.isEmpty()) return null;
+        return lookup(ext, 0, ext.length());
+    }
+
+    private String lookup(String s, int start, int end) {
+        int slot = hash(s, start, end) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (matches(key, s, start, end)) return values[slot];
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String key, String s, int start, int end) {
+        if (key.length() != end - start) return false;
+        for (int i = 0; i < key.length(); i++) {
+            if (key.charAt(i) != Character.toLowerCase(s.charAt(start + i))) return false;
+        }
+        return true;
+    }
+}
+
+// Ordered user rules, tried before the extension categories. One rule per
+// line, "<target folder>: <conditions>", for example
+//   Videos/Large: *.mp4 size>1GB
+//   Archive: age>30d
+//   Finance: invoice_*.pdf
+//   Logs: re:app-\d+\.log
+// All conditions of a rule must hold and the first matching rule wins. Name
+// globs (* and ?) ignore case; re: is a Java regex over the whole name (no
+// spaces). Sizes take B/KB/MB/GB/TB (1024-based), ages s/m/h/d/w, compared
+// with the file's mtime. Blank lines and lines starting with # are ignored.
+//
+// Rules are indexed once when compiled: globs and regexes ending in a
+// literal extension (*.pdf, re:.*\.pdf) are bucketed by it, other globs
+// with a literal start go into a prefix trie, and only the remaining rules
+// (age/size only, other regexes, globs that start with a wildcard) are
+// tried for every file, and only those before the best match the buckets
+// found. So a file is only tested against rules that could match its name,
+// however many rules there are. Matching uses the attributes already read
+// during enumeration.
+final class RuleEngine {
+    static final class Rule {
+        final int order;
+        final String text;
+        final String target;
+        final String glob;
+        final java.util.regex.Pattern regex;
+        final long minSize, maxSize;           // exclusive bounds; -1 / Long.MAX_VALUE when unset
+        final long minAgeMillis, maxAgeMillis; // same
+
+        Rule(int order, String text, String target, String glob, java.util.regex.Pattern regex,
+             long minSize, long maxSize, long minAgeMillis, long maxAgeMillis) {
+            this.order = order;
+            this.text = text;
+            this.target = target;
+            this.glob = glob;
+            this.regex = regex;
+            this.minSize = minSize;
+            this.maxSize = maxSize;
+            this.minAgeMillis = minAgeMillis;
+            this.maxAgeMillis = maxAgeMillis;
+        }
+
+        boolean matches(String name, BasicFileAttributes attrs, long now) {
+            long size = attrs.size();
+            if (size <= minSize || size >= maxSize) return false;
+            if (minAgeMillis >= 0 || maxAgeMillis != Long.MAX_VALUE) {
+                long age = now - attrs.lastModifiedTime().toMillis();
+                if (age <= minAgeMillis || age >= maxAgeMillis) return false;
+            }
+            if (glob != null && !globMatches(glob, name)) return false;
+            return regex == null || regex.matcher(name).matches();
+        }
+
+        @Override
+        public String toString() {
+            return "rule " + (order + 1) + " (" + text + ")";
+        }
+    }
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new java.util.HashMap<>();
+        int[] rules;
+    }
+
+    private static final int[] NONE = new int[0];
+
+    private final Rule[] rules;
+    private final Map<String, int[]> byExtension;
+    private final TrieNode prefixes;
+    private final int[] generic;
+
+    private RuleEngine(Rule[] rules, Map<String, int[]> byExtension, TrieNode prefixes, int[] generic) {
+        this.rules = rules;
+        this.byExtension = byExtension;
+        this.prefixes = prefixes;
+        this.generic = generic;
+    }
+
+    // Throws IllegalArgumentException naming the first bad line.
+    static RuleEngine compile(java.util.List<String> lines) {
+        java.util.List<Rule> rules = new java.util.ArrayList<>();
+        Map<String, java.util.List<Integer>> byExtension = new java.util.HashMap<>();
+        Map<String, java.util.List<Integer>> byPrefix = new java.util.HashMap<>();
+        java.util.List<Integer> generic = new java.util.ArrayList<>();
+
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            Rule rule;
+            try {
+                rule = parse(rules.size(), line);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Rule line " + (i + 1) + ": " + e.getMessage());
+            }
+            int index = rules.size();
+            rules.add(rule);
+
+            String ext = rule.glob != null ? literalExtension(rule.glob)
+                    : rule.regex != null ? regexExtension(rule.regex.pattern()) : null;
+            String prefix = rule.glob == null ? "" : literalPrefix(rule.glob);
+            if (ext != null) {
+                byExtension.computeIfAbsent(ext, k -> new java.util.ArrayList<>()).add(index);
+            } else if (!prefix.isEmpty()) {
+                byPrefix.computeIfAbsent(prefix, k -> new java.util.ArrayList<>()).add(index);
+            } else {
+                generic.add(index);
+            }
+        }
+
+        Map<String, int[]> extIndex = new java.util.HashMap<>();
+        for (Map.Entry<String, java.util.List<Integer>> e : byExtension.entrySet()) {
+            extIndex.put(e.getKey(), toArray(e.getValue()));
+        }
+        TrieNode root = new TrieNode();
+        for (Map.Entry<String, java.util.List<Integer>> e : byPrefix.entrySet()) {
+            TrieNode node = root;
+            for (char c : e.getKey().toCharArray()) {
+                node = node.children.computeIfAbsent(c, k -> new TrieNode());
+            }
+            node.rules = toArray(e.getValue());
+        }
+        return new RuleEngine(rules.toArray(new Rule[0]), extIndex, root, toArray(generic));
+    }
+
+    int size() {
+        return rules.length;
+    }
+
+    // The first rule (in file order) that matches, or null.
+    Rule match(String name, BasicFileAttributes attrs, long now) {
+        if (rules.length == 0) return null;
+        int best = Integer.MAX_VALUE;
+
+        if (!byExtension.isEmpty()) {
+            int dot = name.lastIndexOf('.');
+            int[] bucket = byExtension.get(dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT));
+            if (bucket != null) best = firstMatch(bucket, best, name, attrs, now);
+        }
+
+        TrieNode node = prefixes;
+        for (int i = 0; i < name.length() && !node.children.isEmpty(); i++) {
+            node = node.children.get(Character.toLowerCase(name.charAt(i)));
+            if (node == null) break;
+            if (node.rules != null) best = firstMatch(node.rules, best, name, attrs, now);
+        }
+
+        // last, so an early bucketed match cuts this list short
+        best = firstMatch(generic, best, name, attrs, now);
+        return best == Integer.MAX_VALUE ? null : rules[best];
+    }
+
+    // Candidates are in rule order, so only those before the best match so far are tried.
+    private int firstMatch(int[] candidates, int best, String name, BasicFileAttributes attrs, long now) {
+        for (int index : candidates) {
+            if (index >= best) break;
+            if (rules[index].matches(name, attrs, now)) return index;
+        }
+        return best;
+    }
+
+    private static Rule parse(int order, String line) {
+        int colon = line.indexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("expected \"<folder>: <conditions>\"");
+        String target = line.substring(0, colon).trim().replace('\\', '/');
+        while (target.endsWith("/")) target = target.substring(0, target.length() - 1);
+        if (target.isEmpty() || target.startsWith("/") || Arrays.asList(target.split("/")).contains("..")) {
+            throw new IllegalArgumentException("target must be a folder inside the target folder: " + target);
+        }
+
+        String glob = null;
+        java.util.regex.Pattern regex = null;
+        long minSize = -1, maxSize = Long.MAX_VALUE, minAge = -1, maxAge = Long.MAX_VALUE;
+        String[] conditions = line.substring(colon + 1).trim().split("\\s+");
+        for (String condition : conditions) {
+            if (condition.isEmpty()) continue;
+            String lower = condition.toLowerCase(Locale.ROOT);
+            if (lower.startsWith("size>")) {
+                minSize = parseAmount(condition.substring(5), SIZE_UNITS, SIZE_FACTORS);
+            } else if (lower.startsWith("size<")) {
+                maxSize = parseAmount(condition.substring(5), SIZE_UNITS, SIZE_FACTORS);
+            } else if (lower.startsWith("age>")) {
+                minAge = parseAmount(condition.substring(4), AGE_UNITS, AGE_FACTORS);
+            } else if (lower.startsWith("age<")) {
+                maxAge = parseAmount(condition.substring(4), AGE_UNITS, AGE_FACTORS);
+            } else {
+                if (glob != null || regex != null) {
+                    throw new IllegalArgumentException("only one name pattern per rule: " + condition);
+                }
+                if (lower.startsWith("re:")) {
+                    try {
+                        regex = java.util.regex.Pattern.compile(condition.substring(3));
+                    } catch (java.util.regex.PatternSyntaxException e) {
+                        throw new IllegalArgumentException("bad regex " + condition.substring(3) + ": "
+                                + e.getDescription());
+                    }
+                } else {
+                    glob = lower;
+                }
+            }
+        }
+        if (glob == null && regex == null && minSize < 0 && maxSize == Long.MAX_VALUE
+                && minAge < 0 && maxAge == Long.MAX_VALUE) {
+            throw new IllegalArgumentException("no conditions");
+        }
+        return new Rule(order, line, target, glob, regex, minSize, maxSize, minAge, maxAge);
+    }
+
+    private static final String[] SIZE_UNITS = {"b", "kb", "mb", "gb", "tb"};
+    private static final long[] SIZE_FACTORS = {1, 1L << 10, 1L << 20, 1L << 30, 1L << 40};
+    private static final String[] AGE_UNITS = {"s", "m", "h", "d", "w"};
+    private static final long[] AGE_FACTORS = {1000, 60_000, 3_600_000, 86_400_000, 604_800_000};
+
+    // "1.5GB" -> bytes, "30d" -> milliseconds
+    private static long parseAmount(String text, String[] units, long[] factors) {
+        String lower = text.trim().toLowerCase(Locale.ROOT);
+        int end = 0;
+        while (end < lower.length() && (Character.isDigit(lower.charAt(end)) || lower.charAt(end) == '.')) end++;
+        String unit = lower.substring(end);
+        long factor = -1;
+        if (unit.isEmpty() && factors[0] == 1) factor = 1; // plain bytes
+        for (int i = 0; i < units.length; i++) {
+            if (units[i].equals(unit)) factor = factors[i];
+        }
+        if (end == 0 || factor < 0) {
+            throw new IllegalArgumentException("bad amount \"" + text + "\" (units: " + String.join(", ", units) + ")");
+        }
+        try {
+            return (long) (Double.parseDouble(lower.substring(0, end)) * factor);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("bad number \"" + text + "\"");
+        }
+    }
+
+    // "invoice_*.pdf" -> "pdf"; null if the part after the last dot has wildcards.
+    private static String literalExtension(String glob) {
+        int dot = glob.lastIndexOf('.');
+        if (dot < 0) return null;
+        String ext = glob.substring(dot + 1);
+        return ext.indexOf('*') >= 0 || ext.indexOf('?') >= 0 ? null : ext;
+    }
+
+    // app-\d+\.log or .*\.pdf$ -> "log" / "pdf": the regex can only match
+    // names ending in that extension. null unless it ends in \. and letters or
+    // digits, with no alternation and no inline flags other than a leading (?i).
+    static String regexExtension(String pattern) {
+        if (pattern.startsWith("(?i)")) pattern = pattern.substring(4);
+        if (pattern.indexOf('|') >= 0 || pattern.contains("(?")) return null;
+        int end = pattern.endsWith("$") ? pattern.length() - 1 : pattern.length();
+        int start = end;
+        while (start > 0 && isAsciiLetterOrDigit(pattern.charAt(start - 1))) start--;
+        if (start == end || start < 2 || pattern.charAt(start - 1) != '.' || pattern.charAt(start - 2) != '\\') {
+            return null;
+        }
+        if (start >= 3 && pattern.charAt(start - 3) == '\\') return null; // "\\." is a backslash, then any char
+        return pattern.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return c < 0x80 && Character.isLetterOrDigit(c);
+    }
+
+    private static String literalPrefix(String glob) {
+        int end = 0;
+        while (end < glob.length() && glob.charAt(end) != '*' && glob.charAt(end) != '?') end++;
+        return glob.substring(0, end);
+    }
+
+    // Case-insensitive glob match with backtracking to the last '*'; the glob is lower-case.
+    static boolean globMatches(String glob, String name) {
+        int g = 0, n = 0, star = -1, mark = 0;
+        while (n < name.length()) {
+            if (g < glob.length() && glob.charAt(g) == '*') {
+                star = g++;
+                mark = n;
+            } else if (g < glob.length()
+                    && (glob.charAt(g) == '?' || glob.charAt(g) == Character.toLowerCase(name.charAt(n)))) {
+                g++;
+                n++;
+            } else if (star >= 0) {
+                g = star + 1;
+                n = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (g < glob.length() && glob.charAt(g) == '*') g++;
+        return g == glob.length();
+    }
+
+    private static int[] toArray(java.util.List<Integer> list) {
+        if (list.isEmpty()) return NONE;
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+}
+
+// Shared I/O budget for several sort jobs. At most `budget` moves run at once
+// across all jobs and at most `perDevice` on any one device (the file store
+// of a job's target folder), so two jobs sorting onto the same disk take
+// turns instead of thrashing it. Waiting moves are granted round-robin by
+// job, so a job with a huge backlog cannot starve the others; within a job
+// moves are granted in order.
+final class IoGate {
+    private final int budget;
+    private final int perDevice;
+    private final ReentrantLock lock = new ReentrantLock();
+    // jobs with waiting moves, in turn order; a job that is served goes to the back
+    private final Map<String, ArrayDeque<Ticket>> waiting = new java.util.LinkedHashMap<>();
+    private final Map<Object, Integer> busyByDevice = new java.util.HashMap<>();
+    private int busy;
+
+    private final class Ticket {
+        final Object device;
+        final Condition granted = lock.newCondition();
+        boolean ready;
+
+        Ticket(Object device) {
+            this.device = device;
+        }
+    }
+
+    IoGate(int budget, int perDevice) {
+        if (budget < 1 || perDevice < 1) throw new IllegalArgumentException("I/O limits must be >= 1");
+        this.budget = budget;
+        this.perDevice = perDevice;
+    }
+
+    void acquire(String job, Object device) throws InterruptedException {
+        lock.lock();
+        try {
+            Ticket ticket = new Ticket(device);
+            waiting.computeIfAbsent(job, k -> new ArrayDeque<>()).add(ticket);
+            dispatch();
+            while (!ticket.ready) {
+                try {
+                    ticket.granted.await();
+                } catch (InterruptedException e) {
+                    if (ticket.ready) {
+                        releaseLocked(device);
+                    } else {
+                        ArrayDeque<Ticket> queue = waiting.get(job);
+                        queue.remove(ticket);
+                        if (queue.isEmpty()) waiting.remove(job);
+                    }
+                    throw e;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release(Object device) {
+        lock.lock();
+        try {
+            releaseLocked(device);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked(Object device) {
+        busy--;
+        busyByDevice.merge(device, -1, (a, b) -> a + b == 0 ? null : a + b);
+        dispatch();
+    }
+
+    // Grants the first waiting move of each job in turn while there is room.
+    // A job whose next move is for a busy device is passed over, not waited on.
+    private void dispatch() {
+        boolean progress = true;
+        while (busy < budget && progress && !waiting.isEmpty()) {
+            progress = false;
+            java.util.List<Map.Entry<String, ArrayDeque<Ticket>>> served = new java.util.ArrayList<>();
+            Iterator<Map.Entry<String, ArrayDeque<Ticket>>> jobs = waiting.entrySet().iterator();
+            while (jobs.hasNext() && busy < budget) {
+                Map.Entry<String, ArrayDeque<Ticket>> job = jobs.next();
+                Ticket head = job.getValue().peek();
+                if (busyByDevice.getOrDefault(head.device, 0) >= perDevice) continue;
+                job.getValue().poll();
+                busy++;
+                busyByDevice.merge(head.device, 1, Integer::sum);
+                head.ready = true;
+                head.granted.signal();
+                jobs.remove();
+                if (!job.getValue().isEmpty()) served.add(job);
+                progress = true;
+            }
+            for (Map.Entry<String, ArrayDeque<Ticket>> job : served) waiting.put(job.getKey(), job.getValue());
+        }
+    }
+}
+
+// A named source -> target sort that runs on its own interval. Every run gets
+// a fresh sorter from the supplier, all sharing the job's cumulative metrics.
+final class SortJob {
+    final String name;
+    final String source;
+    final String target;
+    final long intervalMinutes;
+    final SortMetrics metrics;
+    private final Supplier<FileSorter> sorters;
+    final AtomicBoolean running = new AtomicBoolean();
+    final AtomicInteger runs = new AtomicInteger();
+    volatile String lastResult = "not run yet";
+
+    SortJob(String name, String source, String target, long intervalMinutes, SortMetrics metrics,
+            Supplier<FileSorter> sorters) {
+        if (intervalMinutes < 1) throw new IllegalArgumentException("Job " + name + ": interval must be >= 1 minute");
+        this.name = name;
+        this.source = source;
+        this.target = target;
+        this.intervalMinutes = intervalMinutes;
+        this.metrics = metrics;
+        this.sorters = sorters;
+    }
+
+    FileSorter newSorter() {
+        return sorters.get();
+    }
+}
+
+// Runs the main window's sorts, undos, plan executions and auto-sort runs
+// (interval ticks and watch batches) one at a time on one thread, so they
+// never race on the same files. A sort requested while a sort of the same
+// source and target, and of the same kind (auto-sort or not), is still
+// waiting is merged into it (the newest options win, and every caller hears
+// the result); other work queues in order. stopAuto() is cooperative: queued
+// auto-sort work is dropped and a running auto-sort stops between files,
+// never in the middle of a move; other work is left alone.
+final class SortCoordinator implements Closeable {
+    enum State { IDLE, RUNNING, QUEUED }
+
+    // Work on the coordinator thread; sorter is null for work without one.
+    interface Work {
+        int[] run(FileSorter sorter) throws IOException;
+    }
+
+    // Told how a request ended: result is null if it failed or was dropped.
+    interface Listener {
+        void finished(int[] result, Exception failure);
+    }
+
+    private static final class Entry {
+        Supplier<FileSorter> sorter;
+        final Work work;
+        final boolean auto;
+        final String source; // set for sorts that may be merged
+        final String target;
+        final java.util.List<Listener> listeners = new java.util.ArrayList<>();
+
+        Entry(Supplier<FileSorter> sorter, Work work, boolean auto, String source, String target) {
+            this.sorter = sorter;
+            this.work = work;
+            this.auto = auto;
+            this.source = source;
+            this.target = target;
+        }
+
+        boolean merges(String source, String target, boolean auto) {
+            return this.source != null && this.source.equals(source) && this.target.equals(target)
+                    && this.auto == auto;
+        }
+    }
+
+    private final Consumer<String> logger;
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "sort-runner");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "sort-timer");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService readers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "sort-preview");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>(); // guarded by this
+    private boolean draining; // guarded by this
+    private Entry currentEntry; // guarded by this
+    private FileSorter current; // guarded by this
+    private boolean stopCurrent; // stopped before its sorter was made; guarded by this
+    private volatile State state = State.IDLE;
+
+    SortCoordinator(Consumer<String> logger) {
+        this.logger = logger;
+    }
+
+    // Sorts source into target with a sorter made when the run starts; auto
+    // marks auto-sort runs.
+    synchronized void sort(String source, String target, boolean auto, Supplier<FileSorter> sorter,
+                           Listener listener) {
+        for (Entry queued : queue) {
+            if (queued.merges(source, target, auto)) {
+                queued.sorter = sorter;
+                queued.listeners.add(listener);
+                return;
+            }
+        }
+        enqueue(new Entry(sorter, s -> s.sortFiles(logger), auto, source, target), listener);
+    }
+
+    // Runs the work after everything queued before it; sorter may be null.
+    void submit(Supplier<FileSorter> sorter, Work work, Listener listener) {
+        enqueue(new Entry(sorter, work, false, null, null), listener);
+    }
+
+    // Like submit(), for auto-sort work that stopAuto() may cancel.
+    void submitAuto(Supplier<FileSorter> sorter, Work work, Listener listener) {
+        enqueue(new Entry(sorter, work, true, null, null), listener);
+    }
+
+    // Runs tick every interval, starting now, until the returned future is
+    // cancelled; tick usually requests an auto sort.
+    ScheduledFuture<?> every(long minutes, Runnable tick) {
+        return timer.scheduleAtFixedRate(tick, 0, minutes, TimeUnit.MINUTES);
+    }
+
+    // For read-only work (explain, planning) that may run next to a sort.
+    void read(Runnable task) {
+        readers.execute(task);
+    }
+
+    State state() {
+        return state;
+    }
+
+    // Drops queued auto-sort work and stops a running auto-sort between
+    // files. Returns false if there was none.
+    boolean stopAuto() {
+        return stop(true);
+    }
+
+    private boolean stop(boolean autoOnly) {
+        java.util.List<Entry> dropped = new java.util.ArrayList<>();
+        boolean running;
+        synchronized (this) {
+            for (Iterator<Entry> it = queue.iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (autoOnly && !entry.auto) continue;
+                dropped.add(entry);
+                it.remove();
+            }
+            running = currentEntry != null && (currentEntry.auto || !autoOnly);
+            if (running) {
+                if (current != null) current.cancel();
+                else stopCurrent = true;
+            }
+            updateState();
+        }
+        for (Entry entry : dropped) {
+            notify(entry, null, new CancellationException("Stopped before it started"));
+        }
+        return running || !dropped.isEmpty();
+    }
+
+    private synchronized void enqueue(Entry entry, Listener listener) {
+        entry.listeners.add(listener);
+        queue.add(entry);
+        if (!draining) {
+            draining = true;
+            runner.execute(this::drain);
+        }
+        updateState();
+    }
+
+    private void drain() {
+        while (true) {
+            Entry entry;
+            synchronized (this) {
+                entry = queue.poll();
+                if (entry == null) {
+                    draining = false;
+                    updateState();
+                    return;
+                }
+                currentEntry = entry;
+                updateState();
+            }
+            int[] result = null;
+            Exception failure = null;
+            try {
+                FileSorter sorter = entry.sorter != null ? entry.sorter.get() : null;
+                synchronized (this) {
+                    current = sorter;
+                    if (sorter != null && stopCurrent) sorter.cancel();
+                }
+                result = entry.work.run(sorter);
+                if (sorter != null && sorter.isCancelled()) {
+                    failure = new CancellationException("Stopped after moving " + result[1] + " of "
+                            + result[0] + " file(s)");
+                    result = null;
+                }
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                synchronized (this) {
+                    current = null;
+                    currentEntry = null;
+                    stopCurrent = false;
+                }
+            }
+            notify(entry, result, failure);
+        }
+    }
+
+    // guarded by this
+    private void updateState() {
+        state = !draining ? State.IDLE : queue.isEmpty() ? State.RUNNING : State.QUEUED;
+    }
+
+    private void notify(Entry entry, int[] result, Exception failure) {
+        for (Listener listener : entry.listeners) {
+            try {
+                listener.finished(result, failure);
+            } catch (RuntimeException e) {
+                logger.accept("Sort listener failed: " + e);
+            }
+        }
+    }
+
+    // Drops queued work and stops the running sort between files.
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        readers.shutdown();
+        stop(false);
+        runner.shutdown();
+        FileSorter.awaitQuietly(runner);
+    }
+}
+
+// Runs many sort jobs from one scheduler thread. Due jobs are started on a
+// shared pool (a job never overlaps with its own previous run), and every
+// move of every job goes through one IoGate.
+final class JobScheduler implements Closeable {
+    private final IoGate gate;
+    private final Consumer<String> logger;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "job-scheduler");
+        t.setDaemon(true);
+        return t;
+    });
+    private final ExecutorService runners = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "job-runner");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Map<String, SortJob> jobs = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> schedules = new ConcurrentHashMap<>();
+
+    JobScheduler(IoGate gate, Consumer<String> logger) {
+        this.gate = gate;
+        this.logger = logger;
+    }
+
+    // Starts the job now and then every intervalMinutes.
+    void schedule(SortJob job) {
+        if (jobs.putIfAbsent(job.name, job) != null) {
+            throw new IllegalArgumentException("A job named " + job.name + " already exists");
+        }
+        schedules.put(job.name, scheduler.scheduleWithFixedDelay(() -> start(job), 0, job.intervalMinutes,
+                TimeUnit.MINUTES));
+    }
+
+    // Stops scheduling the job; a run in progress finishes.
+    void remove(String name) {
+        ScheduledFuture<?> schedule = schedules.remove(name);
+        if (schedule != null) schedule.cancel(false);
+        jobs.remove(name);
+    }
+
+    java.util.List<SortJob> jobs() {
+        java.util.List<SortJob> list = new java.util.ArrayList<>(jobs.values());
+        list.sort(Comparator.comparing(job -> job.name));
+        return list;
+    }
+
+    // Runs each job once, all at the same time, and waits for them.
+    void runOnce(Collection<SortJob> once) throws InterruptedException {
+        java.util.List<Future<?>> started = new java.util.ArrayList<>();
+        for (SortJob job : once) {
+            jobs.putIfAbsent(job.name, job); // listed in toPrometheus()
+            Future<?> future = start(job);
+            if (future != null) started.add(future);
+        }
+        for (Future<?> future : started) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // already logged by run()
+            }
+        }
+    }
+
+    private Future<?> start(SortJob job) {
+        if (!job.running.compareAndSet(false, true)) return null; // previous run still going
+        try {
+            return runners.submit(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            job.running.set(false);
+            return null;
+        }
+    }
+
+    private void run(SortJob job) {
+        try {
+            FileSorter sorter = job.newSorter();
+            sorter.setIoGate(gate, job.name);
+            int[] result = sorter.sortFiles(logger);
+            job.lastResult = "moved " + result[1] + " of " + result[0];
+            SortLog.log(logger, SortLog.Level.INFO, "Job {}: {}", job.name, job.lastResult);
+        } catch (Exception e) {
+            job.lastResult = "failed: " + e.getMessage();
+            SortLog.log(logger, SortLog.Level.WARN, "Job {} failed: {}", job.name, e.getMessage());
+        } finally {
+            job.runs.incrementAndGet();
+            job.running.set(false);
+        }
+    }
+
+    // Per-job counters with a job label, in the Prometheus text format.
+    String toPrometheus() {
+        java.util.List<SortJob> list = jobs();
+        StringBuilder out = new StringBuilder(1024);
+        jobCounter(out, list, "sorter_job_runs_total", "Finished runs per job.", job -> (long) job.runs.get());
+        jobCounter(out, list, "sorter_job_files_found_total", "Files found per job.", job -> job.metrics.filesFound.sum());
+        jobCounter(out, list, "sorter_job_files_moved_total", "Files moved per job.", job -> job.metrics.filesMoved.sum());
+        jobCounter(out, list, "sorter_job_files_failed_total", "Failed moves per job.", job -> job.metrics.filesFailed.sum());
+        jobCounter(out, list, "sorter_job_files_skipped_total", "Files skipped per job.", job -> job.metrics.filesSkipped.sum());
+        jobCounter(out, list, "sorter_job_bytes_moved_total", "Bytes moved per job.", job -> job.metrics.bytesMoved.sum());
+        return out.toString();
+    }
+
+    private static void jobCounter(StringBuilder out, java.util.List<SortJob> jobs, String name, String help,
+                                   java.util.function.ToLongFunction<SortJob> value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (SortJob job : jobs) {
+            out.append(name).append("{job=\"").append(job.name.replace("\\", "\\\\").replace("\"", "\\\""))
+                    .append("\"} ").append(value.applyAsLong(job)).append('\n');
+        }
+    }
+
+    // Lets runs in progress finish.
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        FileSorter.awaitQuietly(scheduler);
+        runners.shutdown();
+        FileSorter.awaitQuietly(runners);
+    }
+}
+
+// The result of a dry run: where each file of the source would go, its size
+// and mtime when planned, and which rule or category decided it. Stored in
+// parallel primitive arrays; folders and reasons are kept once each and
+// referenced by index, and a target always keeps the source's file name, so
+// an entry costs one name string plus a few ints and longs rather than two
+// Path objects. Entries can be read while the plan is still growing.
+// save()/load() keep a plan as tab-separated lines, so it can be executed
+// later (FileSorter.executePlan) without listing the source again.
+final class MovePlan {
+    private final Path targetBase;
+    private final java.util.List<Path> dirs = new java.util.ArrayList<>();
+    private final Map<Path, Integer> dirIndex = new java.util.HashMap<>();
+    private final java.util.List<String> reasons = new java.util.ArrayList<>();
+    private final Map<String, Integer> reasonIndex = new java.util.HashMap<>();
+    private String[] names = new String[1024];
+    private int[] sourceDirs = new int[1024];
+    private int[] targetDirs = new int[1024];
+    private int[] reasonIds = new int[1024];
+    private long[] sizes = new long[1024];
+    private long[] mtimes = new long[1024];
+    private int count;
+    private long totalBytes;
+    private volatile boolean complete;
+
+    MovePlan(Path targetBase) {
+        this.targetBase = targetBase;
+    }
+
+    Path targetBase() {
+        return targetBase;
+    }
+
+    synchronized void add(Path source, Path target, long size, long mtime, String reason) {
+        if (count == names.length) {
+            int capacity = count * 2;
+            names = Arrays.copyOf(names, capacity);
+            sourceDirs = Arrays.copyOf(sourceDirs, capacity);
+            targetDirs = Arrays.copyOf(targetDirs, capacity);
+            reasonIds = Arrays.copyOf(reasonIds, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            mtimes = Arrays.copyOf(mtimes, capacity);
+        }
+        names[count] = source.getFileName().toString();
+        sourceDirs[count] = dir(source.getParent());
+        targetDirs[count] = dir(target.getParent());
+        Integer id = reasonIndex.get(reason);
+        if (id == null) {
+            id = reasons.size();
+            reasons.add(reason);
+            reasonIndex.put(reason, id);
+        }
+        reasonIds[count] = id;
+        sizes[count] = size;
+        mtimes[count] = mtime;
+        totalBytes += size;
+        count++;
+    }
+
+    private int dir(Path dir) {
+        Integer id = dirIndex.get(dir);
+        if (id == null) {
+            id = dirs.size();
+            dirs.add(dir);
+            dirIndex.put(dir, id);
+        }
+        return id;
+    }
+
+    void markComplete() {
+        complete = true;
+    }
+
+    // Planning has finished (the plan will not grow any more).
+    boolean isComplete() {
+        return complete;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    synchronized String name(int i) {
+        return names[i];
+    }
+
+    synchronized Path source(int i) {
+        return dirs.get(sourceDirs[i]).resolve(names[i]);
+    }
+
+    synchronized Path target(int i) {
+        return dirs.get(targetDirs[i]).resolve(names[i]);
+    }
+
+    synchronized Path targetDir(int i) {
+        return dirs.get(targetDirs[i]);
+    }
+
+    synchronized long fileSize(int i) {
+        return sizes[i];
+    }
+
+    synchronized long modifiedMillis(int i) {
+        return mtimes[i];
+    }
+
+    synchronized String reason(int i) {
+        return reasons.get(reasonIds[i]);
+    }
+
+    // First line: the target folder; then size, mtime, source, target folder, reason.
+    synchronized void save(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("T\t" + SortState.escape(targetBase.toAbsolutePath().toString()) + "\n");
+            for (int i = 0; i < count; i++) {
+                out.write(sizes[i] + "\t" + mtimes[i] + "\t"
+                        + SortState.escape(source(i).toAbsolutePath().toString()) + "\t"
+                        + SortState.escape(targetDir(i).toAbsolutePath().toString()) + "\t"
+                        + SortState.escape(reason(i)) + "\n");
+            }
+        }
+    }
+
+    static MovePlan load(Path file) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String header = in.readLine();
+            if (header == null || !header.startsWith("T\t")) throw new IOException(file + " is not a move plan");
+            MovePlan plan = new MovePlan(Paths.get(SortState.unescape(header.substring(2))));
+            String line;
+            int number = 1;
+            while ((line = in.readLine()) != null) {
+                number++;
+                String[] parts = line.split("\t", -1);
+                if (parts.length != 5) throw new IOException(file + ": bad plan line " + number);
+                Path source = Paths.get(SortState.unescape(parts[2]));
+                try {
+                    plan.add(source, Paths.get(SortState.unescape(parts[3])).resolve(source.getFileName()),
+                            Long.parseLong(parts[0]), Long.parseLong(parts[1]), SortState.unescape(parts[4]));
+                } catch (NumberFormatException e) {
+                    throw new IOException(file + ": bad plan line " + number);
+                }
+            }
+            plan.markComplete();
+            return plan;
+        }
     }
 }
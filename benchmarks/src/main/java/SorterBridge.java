@@ -0,0 +1,71 @@
+import bench.SorterAccess;
+
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Default-package side of bench.SorterAccess.
+public class SorterBridge implements SorterAccess {
+
+    @Override
+    public Map<String, List<String>> defaultCategories() {
+        return FileSorter.defaultCategories();
+    }
+
+    @Override
+    public Function<String, String> extensionParser() {
+        return FileSorter::getFileExtension;
+    }
+
+    @Override
+    public Function<String, String> indexLookup(Map<String, List<String>> categories) {
+        return ExtensionIndex.build(categories)::categoryFor;
+    }
+
+    @Override
+    public Function<String, String> sorterLookup(Map<String, List<String>> categories) {
+        return new FileSorter("/nonexistent-source", "/nonexistent-target", categories, false)::getCategoryForFile;
+    }
+
+    @Override
+    public Function<String, String> ruleMatcher(List<String> rules) {
+        RuleEngine engine = RuleEngine.compile(rules);
+        long now = System.currentTimeMillis();
+        BasicFileAttributes attrs = new FixedAttributes(4096, now - 3_600_000);
+        return name -> {
+            RuleEngine.Rule rule = engine.match(name, attrs, now);
+            return rule == null ? null : rule.target;
+        };
+    }
+
+    @Override
+    public int[] sortFiles(String source, String target, Map<String, List<String>> categories,
+                           boolean separateByExtension, int workers) throws IOException {
+        FileSorter sorter = new FileSorter(source, target, categories, separateByExtension);
+        sorter.setConcurrency(workers);
+        return sorter.sortFiles(message -> { });
+    }
+
+    private static final class FixedAttributes implements BasicFileAttributes {
+        private final long size;
+        private final FileTime modified;
+
+        FixedAttributes(long size, long modifiedMillis) {
+            this.size = size;
+            this.modified = FileTime.fromMillis(modifiedMillis);
+        }
+
+        @Override public FileTime lastModifiedTime() { return modified; }
+        @Override public FileTime lastAccessTime() { return modified; }
+        @Override public FileTime creationTime() { return modified; }
+        @Override public boolean isRegularFile() { return true; }
+        @Override public boolean isDirectory() { return false; }
+        @Override public boolean isSymbolicLink() { return false; }
+        @Override public boolean isOther() { return false; }
+        @Override public long size() { return size; }
+        @Override public Object fileKey() { return null; }
+    }
+}
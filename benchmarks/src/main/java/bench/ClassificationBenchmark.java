@@ -0,0 +1,107 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// Extension parsing and category lookup for one batch of file names.
+// categoryCount covers the built-in set (7), a typical customized setup (40)
+// and a large one (200); each category claims extensionsPerCategory extensions.
+// linearScan is the List.contains walk getCategoryForFile used to do, kept as
+// the baseline for the precompiled index.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassificationBenchmark {
+
+    @Param({"7", "40", "200"})
+    int categoryCount;
+
+    @Param({"8"})
+    int extensionsPerCategory;
+
+    private static final int NAMES = 1024;
+
+    private Map<String, List<String>> categories;
+    private Function<String, String> extensionParser;
+    private Function<String, String> indexLookup;
+    private Function<String, String> sorterLookup;
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        categories = new HashMap<>();
+        List<String> allExtensions = new ArrayList<>();
+        for (int c = 0; c < categoryCount; c++) {
+            List<String> exts = new ArrayList<>();
+            for (int e = 0; e < extensionsPerCategory; e++) {
+                String ext = "x" + c + "e" + e;
+                exts.add(ext);
+                allExtensions.add(ext);
+            }
+            categories.put("Category" + c, exts);
+        }
+        categories.put("Others", new ArrayList<>());
+        SorterAccess access = SorterAccess.load();
+        extensionParser = access.extensionParser();
+        indexLookup = access.indexLookup(categories);
+        sorterLookup = access.sorterLookup(categories);
+
+        // mostly known extensions in mixed case, some unknown and some without one
+        names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                names[i] = "README";
+            } else if (kind == 1) {
+                names[i] = "download-" + i + ".unknown";
+            } else {
+                String ext = allExtensions.get(random.nextInt(allExtensions.size()));
+                names[i] = "report_" + i + "." + (kind == 2 ? ext.toUpperCase(Locale.ROOT) : ext);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void extensionParsing(Blackhole bh) {
+        for (String name : names) bh.consume(extensionParser.apply(name));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void indexLookup(Blackhole bh) {
+        for (String name : names) bh.consume(indexLookup.apply(name));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void getCategoryForFile(Blackhole bh) {
+        for (String name : names) bh.consume(sorterLookup.apply(name));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void linearScan(Blackhole bh) {
+        for (String name : names) {
+            String ext = extensionParser.apply(name);
+            String found = "Others";
+            if (ext != null) {
+                for (Map.Entry<String, List<String>> entry : categories.entrySet()) {
+                    if (entry.getValue().contains(ext)) {
+                        found = entry.getKey();
+                        break;
+                    }
+                }
+            }
+            bh.consume(found);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+// RuleEngine.match for one batch of file names as the rule list grows.
+// Rules are mostly "*.ext size>..." and "prefix_*" globs, which the engine
+// indexes, plus a fixed handful of age and regex rules it has to try for
+// every file; the per-name cost should stay flat across ruleCount.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RuleBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int ruleCount;
+
+    private static final int NAMES = 1024;
+
+    private Function<String, String> matcher;
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        List<String> rules = new ArrayList<>();
+        rules.add("Archive: age>30d");
+        rules.add("Logs: re:app-\\d+\\.log");
+        for (int i = 0; rules.size() < ruleCount; i++) {
+            rules.add(i % 2 == 0 ? "Large" + i + ": *.x" + i + " size>1MB" : "Prefixed" + i + ": p" + i + "_*");
+        }
+        matcher = SorterAccess.load().ruleMatcher(rules);
+
+        Random random = new Random(42);
+        names = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            int n = random.nextInt(Math.max(1, ruleCount));
+            names[i] = random.nextBoolean() ? "p" + n + "_file" + i + ".dat" : "file" + i + ".x" + n;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NAMES)
+    public void match(Blackhole bh) {
+        for (String name : names) bh.consume(matcher.apply(name));
+    }
+}
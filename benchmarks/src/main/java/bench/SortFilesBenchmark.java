@@ -0,0 +1,90 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// sortFiles end to end on a freshly generated flat folder of empty files.
+// Each invocation sorts the whole folder once, so the mode is single shot and
+// the folder is rebuilt before every invocation. Files are created under
+// -Dsorter.bench.dir, defaulting to /dev/shm (tmpfs) when it exists, so the
+// numbers show the sorter's own cost rather than the disk's.
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SortFilesBenchmark {
+
+    private static final String[] EXTENSIONS = {
+            "pdf", "docx", "txt", "jpg", "png", "mp4", "mkv", "mp3", "zip", "exe", "bin", "tmp"
+    };
+
+    @Param({"1000", "100000", "1000000"})
+    int fileCount;
+
+    @Param({"false", "true"})
+    boolean separateByExtension;
+
+    @Param({"1"})
+    int workers;
+
+    private SorterAccess access;
+    private Map<String, List<String>> categories;
+    private Path root;
+    private Path source;
+    private Path target;
+
+    @Setup(Level.Trial)
+    public void createRoot() throws IOException {
+        access = SorterAccess.load();
+        categories = access.defaultCategories();
+        String base = System.getProperty("sorter.bench.dir");
+        if (base == null) base = Files.isDirectory(Paths.get("/dev/shm")) ? "/dev/shm" : System.getProperty("java.io.tmpdir");
+        root = Files.createTempDirectory(Paths.get(base), "sorter-bench");
+    }
+
+    @Setup(Level.Invocation)
+    public void createFiles() throws IOException {
+        deleteTree(root);
+        source = Files.createDirectories(root.resolve("source"));
+        target = root.resolve("target");
+        for (int i = 0; i < fileCount; i++) {
+            Files.createFile(source.resolve("file-" + i + "." + EXTENSIONS[i % EXTENSIONS.length]));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteRoot() throws IOException {
+        deleteTree(root);
+        Files.deleteIfExists(root);
+    }
+
+    @Benchmark
+    public int[] sortFiles() throws IOException {
+        return access.sortFiles(source.toString(), target.toString(), categories, separateByExtension, workers);
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                if (!d.equals(dir)) Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
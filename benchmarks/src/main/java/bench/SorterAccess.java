@@ -0,0 +1,40 @@
+package bench;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// The app classes live in the default package, which a named package cannot
+// import, and JMH refuses benchmarks in the default package. SorterBridge (in
+// the default package) implements this interface and the benchmarks call it.
+// Each call is a monomorphic interface call, which the JIT inlines.
+public interface SorterAccess {
+
+    static SorterAccess load() {
+        try {
+            return (SorterAccess) Class.forName("SorterBridge").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("SorterBridge is missing from the benchmark jar", e);
+        }
+    }
+
+    Map<String, List<String>> defaultCategories();
+
+    // FileSorter.getFileExtension
+    Function<String, String> extensionParser();
+
+    // ExtensionIndex.categoryFor on an index built from categories
+    Function<String, String> indexLookup(Map<String, List<String>> categories);
+
+    // FileSorter.getCategoryForFile on a sorter built from categories
+    Function<String, String> sorterLookup(Map<String, List<String>> categories);
+
+    // RuleEngine.match for a 4 KiB file modified an hour ago; returns the
+    // matching rule's target folder or null
+    Function<String, String> ruleMatcher(List<String> rules);
+
+    // FileSorter.sortFiles with a logger that discards messages
+    int[] sortFiles(String source, String target, Map<String, List<String>> categories,
+                    boolean separateByExtension, int workers) throws IOException;
+}
@@ -0,0 +1,216 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveExtractorTest {
+    private static final List<String> ESCAPING = Arrays.asList("../../evil.txt", "/abs/x.txt", "a\\..\\..\\y.txt",
+            "dir/.hidden.txt", "dir/../notes.txt");
+
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+    private final List<String> log = Collections.synchronizedList(new ArrayList<>());
+
+    private FileSorter sorter(long maxMemberBytes, long maxArchiveBytes) throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        FileSorter sorter = new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+        sorter.setArchiveExtractor(new ArchiveExtractor(target, maxMemberBytes, maxArchiveBytes),
+                Collections.singletonList("Documents"));
+        return sorter;
+    }
+
+    private static byte[] zip(List<String> names, int memberBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (String name : names) {
+                zip.putNextEntry(new ZipEntry(name));
+                zip.write(content(name, memberBytes));
+                zip.closeEntry();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] tar(List<String> names, int memberBytes) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (String name : names) {
+            byte[] data = content(name, memberBytes);
+            bytes.write(tarHeader(name, data.length));
+            bytes.write(data);
+            bytes.write(new byte[(512 - data.length % 512) % 512]);
+        }
+        bytes.write(new byte[1024]); // end of archive
+        return bytes.toByteArray();
+    }
+
+    // ustar header for a regular file
+    private static byte[] tarHeader(String name, long size) {
+        byte[] header = new byte[512];
+        put(header, 0, name);
+        put(header, 100, "0000644");
+        put(header, 108, "0000000");
+        put(header, 116, "0000000");
+        put(header, 124, String.format("%011o", size));
+        put(header, 136, String.format("%011o", 1_600_000_000L));
+        header[156] = '0';
+        put(header, 257, "ustar");
+        put(header, 263, "00");
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        int sum = 0;
+        for (byte b : header) sum += b & 0xFF;
+        put(header, 148, String.format("%06o", sum));
+        return header;
+    }
+
+    private static void put(byte[] header, int offset, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, header, offset, bytes.length);
+    }
+
+    // named after the member, padded to size
+    private static byte[] content(String name, int size) {
+        byte[] data = Arrays.copyOf(name.getBytes(StandardCharsets.UTF_8), Math.max(size, name.length()));
+        Arrays.fill(data, name.length(), data.length, (byte) 'x');
+        return data;
+    }
+
+    private List<Path> filesOutside(Path... folders) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(f -> Arrays.stream(folders).noneMatch(f::startsWith))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private List<String> documents() throws IOException {
+        Path documents = target.resolve("Documents");
+        if (!Files.isDirectory(documents)) return Collections.emptyList();
+        try (Stream<Path> files = Files.list(documents)) {
+            return files.map(f -> f.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private void assertOnlyBaseNamesUnpacked() throws IOException {
+        assertEquals(Arrays.asList("evil.txt", "notes.txt", "x.txt", "y.txt"), documents());
+        assertEquals(Collections.emptyList(), filesOutside(source, target));
+        assertTrue(Files.exists(target.resolve(ArchiveExtractor.LEDGER)));
+    }
+
+    @Test
+    void zipMembersCannotLeaveTheCategoryFolder() throws IOException {
+        FileSorter sorter = sorter(ArchiveExtractor.MAX_MEMBER_BYTES, ArchiveExtractor.MAX_ARCHIVE_BYTES);
+        Files.write(source.resolve("bundle.zip"), zip(ESCAPING, 10));
+
+        sorter.sortFiles(log::add);
+        assertOnlyBaseNamesUnpacked();
+        assertTrue(Files.exists(target.resolve("Archives/bundle.zip"))); // the archive itself is kept
+    }
+
+    @Test
+    void tarMembersCannotLeaveTheCategoryFolder() throws IOException {
+        FileSorter sorter = sorter(ArchiveExtractor.MAX_MEMBER_BYTES, ArchiveExtractor.MAX_ARCHIVE_BYTES);
+        Files.write(source.resolve("bundle.tar"), tar(ESCAPING, 10));
+
+        sorter.sortFiles(log::add);
+        assertOnlyBaseNamesUnpacked();
+    }
+
+    @Test
+    void gzippedTarIsUnpacked() throws IOException {
+        FileSorter sorter = sorter(ArchiveExtractor.MAX_MEMBER_BYTES, ArchiveExtractor.MAX_ARCHIVE_BYTES);
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(source.resolve("bundle.tar.gz")))) {
+            out.write(tar(ESCAPING, 10));
+        }
+
+        sorter.sortFiles(log::add);
+        assertOnlyBaseNamesUnpacked();
+    }
+
+    @Test
+    void memberOverTheCapStopsTheArchive() throws IOException {
+        FileSorter sorter = sorter(100, 1000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.putNextEntry(new ZipEntry("small.txt"));
+            zip.write(content("small.txt", 50));
+            zip.putNextEntry(new ZipEntry("big.txt"));
+            zip.write(new byte[100_000]); // compresses to almost nothing
+            zip.putNextEntry(new ZipEntry("after.txt"));
+            zip.write(content("after.txt", 50));
+        }
+        Files.write(source.resolve("bomb.zip"), bytes.toByteArray());
+
+        sorter.sortFiles(log::add);
+        assertEquals(Collections.singletonList("small.txt"), documents());
+        assertTrue(log.stream().anyMatch(line -> line.contains("Stopped unpacking") && line.contains("larger than 100")));
+        List<String> ledger = Files.readAllLines(target.resolve(ArchiveExtractor.LEDGER), StandardCharsets.UTF_8);
+        assertEquals(1, ledger.size());
+        assertTrue(ledger.get(0).endsWith("\tbomb.zip"));
+
+        // a copy of an archive that was stopped is not tried again
+        Files.copy(target.resolve("Archives/bomb.zip"), source.resolve("bomb.zip"), StandardCopyOption.COPY_ATTRIBUTES);
+        log.clear();
+        sorter(100, 1000).sortFiles(log::add);
+        assertTrue(log.stream().anyMatch(line -> line.contains("Already unpacked")));
+    }
+
+    @Test
+    void membersOverTheArchiveTotalStopTheArchive() throws IOException {
+        FileSorter sorter = sorter(100, 250);
+        Files.write(source.resolve("many.tar"), tar(Arrays.asList("m1.txt", "m2.txt", "m3.txt", "m4.txt"), 80));
+
+        sorter.sortFiles(log::add);
+        assertEquals(Arrays.asList("m1.txt", "m2.txt", "m3.txt"), documents());
+        assertTrue(log.stream().anyMatch(line -> line.contains("Stopped unpacking") && line.contains("more than 250")));
+        try (Stream<Path> files = Files.walk(target)) {
+            assertFalse(files.anyMatch(f -> f.getFileName().toString().endsWith(".part")));
+        }
+    }
+
+    @Test
+    void memberNamesAreBaseNamesOnly() {
+        assertEquals("evil.txt", ArchiveExtractor.memberName("../../evil.txt"));
+        assertEquals("y.txt", ArchiveExtractor.memberName("a\\..\\..\\y.txt"));
+        assertNull(ArchiveExtractor.memberName("dir/"));
+        assertNull(ArchiveExtractor.memberName("dir/.."));
+        assertNull(ArchiveExtractor.memberName("._resource"));
+        assertNull(ArchiveExtractor.memberName("bad\0name.txt"));
+    }
+
+    @Test
+    void legacyZipNamesAreDecoded() {
+        Charset cp437 = Charset.forName("IBM437");
+        // UTF-8 bytes without the flag, read as CP437
+        String misread = new String("Grüße.txt".getBytes(StandardCharsets.UTF_8), cp437);
+        assertEquals("Grüße.txt", ArchiveExtractor.zipName(misread));
+        // real CP437 bytes (0x81 is ü) are not valid UTF-8 and stay as read
+        String legacy = new String(new byte[]{'G', 'r', (byte) 0x81, 'n', '.', 't', 'x', 't'}, cp437);
+        assertEquals("Grün.txt", ArchiveExtractor.zipName(legacy));
+        assertEquals("plain.txt", ArchiveExtractor.zipName("plain.txt"));
+    }
+}
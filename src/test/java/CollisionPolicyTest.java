@@ -0,0 +1,132 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CollisionPolicyTest {
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    private FileSorter sorter(FileSorter.CollisionPolicy policy) throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        FileSorter sorter = new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+        sorter.setCollisionPolicy(policy);
+        return sorter;
+    }
+
+    private static void write(Path file, String content, long modifiedMillis) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modifiedMillis));
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), "UTF-8");
+    }
+
+    @Test
+    void renameAddsANumberedSuffix() throws IOException {
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.RENAME);
+        write(dir.resolve("target/Documents/a.txt"), "old", 1000);
+        write(dir.resolve("target/Documents/a (1).txt"), "older", 1000);
+        write(source.resolve("a.txt"), "new", 2000);
+
+        sorter.sortFiles(s -> { });
+        assertEquals("old", read(target.resolve("Documents/a.txt")));
+        assertEquals("older", read(target.resolve("Documents/a (1).txt")));
+        assertEquals("new", read(target.resolve("Documents/a (2).txt")));
+    }
+
+    @Test
+    void skipLeavesTheIncomingFileInPlace() throws IOException {
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.SKIP);
+        write(dir.resolve("target/Documents/a.txt"), "old", 1000);
+        write(source.resolve("a.txt"), "new", 2000);
+
+        sorter.sortFiles(s -> { });
+        assertEquals("old", read(target.resolve("Documents/a.txt")));
+        assertEquals("new", read(source.resolve("a.txt")));
+    }
+
+    @Test
+    void fileLeftInPlaceIsNotLookedAtAgainUntilItChanges() throws IOException {
+        write(dir.resolve("target/Documents/a.txt"), "old", 1000);
+        write(dir.resolve("source/a.txt"), "new", 2000);
+        SortState state = new SortState(dir.resolve("state.log"), s -> { });
+        List<String> log = new ArrayList<>();
+        for (int run = 0; run < 2; run++) {
+            FileSorter sorter = sorter(FileSorter.CollisionPolicy.SKIP);
+            sorter.setState(state);
+            sorter.sortFiles(log::add);
+        }
+        assertTrue(log.stream().anyMatch(line -> line.startsWith("Left in place")));
+        assertTrue(log.stream().anyMatch(line -> line.startsWith("Skipped 1 unchanged")));
+
+        // a new state reads the record back; a changed file is tried again
+        write(source.resolve("a.txt"), "newer", 3000);
+        log.clear();
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.SKIP);
+        sorter.setState(new SortState(dir.resolve("state.log"), s -> { }));
+        sorter.sortFiles(log::add);
+        assertTrue(log.stream().anyMatch(line -> line.startsWith("Left in place")));
+    }
+
+    @Test
+    void keepNewerReplacesOnlyWithANewerFile() throws IOException {
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.KEEP_NEWER);
+        write(dir.resolve("target/Documents/older.txt"), "target", 1000);
+        write(source.resolve("older.txt"), "source", 2000);
+        write(dir.resolve("target/Documents/newer.txt"), "target", 2000);
+        write(source.resolve("newer.txt"), "source", 1000);
+
+        sorter.sortFiles(s -> { });
+        assertEquals("source", read(target.resolve("Documents/older.txt")));
+        assertFalse(Files.exists(source.resolve("older.txt")));
+        assertEquals("target", read(target.resolve("Documents/newer.txt")));
+        assertEquals("source", read(source.resolve("newer.txt")));
+    }
+
+    @Test
+    void replaceOverwrites() throws IOException {
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.REPLACE);
+        write(dir.resolve("target/Documents/a.txt"), "old", 2000);
+        write(source.resolve("a.txt"), "new", 1000);
+
+        sorter.sortFiles(s -> { });
+        assertEquals("new", read(target.resolve("Documents/a.txt")));
+        assertFalse(Files.exists(source.resolve("a.txt")));
+    }
+
+    @Test
+    void sameNamesFromParallelWorkersAllGetTheirOwnFile() throws IOException {
+        FileSorter sorter = sorter(FileSorter.CollisionPolicy.RENAME);
+        for (int i = 0; i < 40; i++) write(source.resolve("sub" + i + "/same.txt"), "copy " + i, 1000);
+        sorter.setMaxDepth(1);
+        sorter.setConcurrency(8);
+
+        sorter.sortFiles(s -> { });
+        Set<String> contents = new HashSet<>();
+        try (Stream<Path> files = Files.list(target.resolve("Documents"))) {
+            for (Path file : files.collect(Collectors.toList())) contents.add(read(file));
+        }
+        assertEquals(40, contents.size());
+        assertTrue(contents.contains("copy 0") && contents.contains("copy 39"));
+    }
+}
@@ -0,0 +1,113 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DuplicateDetectorTest {
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    private FileSorter sorter(DuplicateDetector detector, DuplicateDetector.Action action, int workers)
+            throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        FileSorter sorter = new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+        sorter.setConcurrency(workers);
+        sorter.setDuplicateDetector(detector, action);
+        return sorter;
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static long countFiles(Path folder) throws IOException {
+        if (!Files.isDirectory(folder)) return 0;
+        try (Stream<Path> files = Files.list(folder)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void identicalFilesFromParallelWorkersAreMovedOnce() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(dir.resolve("target"), s -> { });
+        FileSorter sorter = sorter(detector, DuplicateDetector.Action.SKIP, 8);
+        byte[] large = randomBytes(300_000, 1); // past the edge hash, so the full hash decides
+        byte[] small = randomBytes(100, 2);
+        for (int i = 0; i < 20; i++) {
+            Files.write(source.resolve("large" + i + ".pdf"), large);
+            Files.write(source.resolve("small" + i + ".txt"), small);
+        }
+        // same size and edges as the large copies, different in the middle
+        byte[] other = large.clone();
+        other[150_000] ^= 1;
+        Files.write(source.resolve("other.pdf"), other);
+
+        sorter.sortFiles(s -> { });
+        assertEquals(3, countFiles(target.resolve("Documents")));
+        assertEquals(38, countFiles(source));
+    }
+
+    @Test
+    void copyOfAFileAlreadyInTheTargetIsLeftInPlace() throws IOException {
+        Files.createDirectories(dir.resolve("target/Documents"));
+        byte[] content = randomBytes(5000, 3);
+        Files.write(dir.resolve("target/Documents/original.pdf"), content);
+        DuplicateDetector detector = new DuplicateDetector(dir.resolve("target"), s -> { });
+        FileSorter sorter = sorter(detector, DuplicateDetector.Action.SKIP, 1);
+        Files.write(source.resolve("copy.pdf"), content);
+
+        sorter.sortFiles(s -> { });
+        assertTrue(Files.exists(source.resolve("copy.pdf")));
+        assertFalse(Files.exists(target.resolve("Documents/copy.pdf")));
+    }
+
+    @Test
+    void hardlinkModeLinksEveryCopyToOneFile() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(dir.resolve("target"), s -> { });
+        FileSorter sorter = sorter(detector, DuplicateDetector.Action.HARDLINK, 4);
+        byte[] content = randomBytes(200_000, 4);
+        for (int i = 0; i < 5; i++) Files.write(source.resolve("copy" + i + ".pdf"), content);
+
+        sorter.sortFiles(s -> { });
+        assertEquals(0, countFiles(source));
+        Set<Object> inodes = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            inodes.add(Files.readAttributes(target.resolve("Documents/copy" + i + ".pdf"), BasicFileAttributes.class).fileKey());
+        }
+        assertEquals(1, inodes.size());
+    }
+
+    @Test
+    void changedFileInTheIndexIsNotADuplicate() throws IOException {
+        DuplicateDetector detector = new DuplicateDetector(dir.resolve("target"), s -> { });
+        byte[] content = randomBytes(5000, 5);
+        FileSorter first = sorter(detector, DuplicateDetector.Action.SKIP, 1);
+        Files.write(source.resolve("a.pdf"), content);
+        first.sortFiles(s -> { });
+
+        // rewritten since it was indexed: a later copy of the old content is new
+        Files.write(target.resolve("Documents/a.pdf"), randomBytes(5000, 6));
+        Files.setLastModifiedTime(target.resolve("Documents/a.pdf"), FileTime.fromMillis(1_000_000));
+        Files.write(source.resolve("b.pdf"), content);
+        sorter(detector, DuplicateDetector.Action.SKIP, 1).sortFiles(s -> { });
+        assertTrue(Files.exists(target.resolve("Documents/b.pdf")));
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileSorterTest {
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    private FileSorter sorter() throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        return new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes("UTF-8"));
+    }
+
+    private static long countFiles(Path root) throws IOException {
+        try (Stream<Path> files = Files.walk(root)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(f -> !root.relativize(f).toString().startsWith(".")) // journals, indexes
+                    .count();
+        }
+    }
+
+    @Test
+    void sortsFilesIntoTheirCategoryFolders() throws IOException {
+        FileSorter sorter = sorter();
+        write(source.resolve("report.PDF"), "pdf");
+        write(source.resolve("photo.jpg"), "jpg");
+        write(source.resolve("notes.unknown"), "?");
+        Files.createDirectories(source.resolve("folder"));
+
+        assertArrayEquals(new int[]{3, 3}, sorter.sortFiles(s -> { }));
+        assertTrue(Files.exists(target.resolve("Documents/report.PDF")));
+        assertTrue(Files.exists(target.resolve("Images/photo.jpg")));
+        assertTrue(Files.exists(target.resolve("Others/notes.unknown")));
+        assertTrue(Files.isDirectory(source.resolve("folder"))); // folders are not sorted
+    }
+
+    @Test
+    void parallelRunMovesEveryFileOnce() throws IOException {
+        FileSorter sorter = sorter();
+        for (int i = 0; i < 300; i++) write(source.resolve("file" + i + (i % 2 == 0 ? ".txt" : ".png")), "x" + i);
+        sorter.setConcurrency(8);
+
+        assertArrayEquals(new int[]{300, 300}, sorter.sortFiles(s -> { }));
+        assertEquals(0, countFiles(source));
+        assertEquals(300, countFiles(target));
+        assertEquals("x7", new String(Files.readAllBytes(target.resolve("Images/file7.png")), "UTF-8"));
+    }
+
+    @Test
+    void subfoldersAreSortedDownToMaxDepth() throws IOException {
+        FileSorter sorter = sorter();
+        write(source.resolve("a/top.txt"), "1");
+        write(source.resolve("a/b/deep.txt"), "2");
+        sorter.setMaxDepth(1);
+
+        sorter.sortFiles(s -> { });
+        assertTrue(Files.exists(target.resolve("Documents/top.txt")));
+        assertFalse(Files.exists(target.resolve("Documents/deep.txt")));
+        assertTrue(Files.exists(source.resolve("a/b/deep.txt")));
+    }
+
+    @Test
+    void recursiveRunSkipsTargetInsideSource() throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = source.resolve("Sorted");
+        write(target.resolve("Documents/old.txt"), "old");
+        write(source.resolve("new.txt"), "new");
+        FileSorter sorter = new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+        sorter.setMaxDepth(5);
+
+        assertArrayEquals(new int[]{1, 1}, sorter.sortFiles(s -> { }));
+        assertTrue(Files.exists(target.resolve("Documents/old.txt")));
+        assertTrue(Files.exists(target.resolve("Documents/new.txt")));
+    }
+}
@@ -0,0 +1,119 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MoveJournalTest {
+    @TempDir
+    Path dir;
+
+    private Path source;
+    private Path target;
+
+    private FileSorter sorter(MoveJournal journal) throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        FileSorter sorter = new FileSorter(source.toString(), target.toString(), FileSorter.defaultCategories(), false);
+        sorter.setJournal(journal);
+        return sorter;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private List<Path> runs(String suffix) throws IOException {
+        try (Stream<Path> files = Files.list(target.resolve(MoveJournal.DIR))) {
+            return files.filter(f -> f.getFileName().toString().endsWith(suffix)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    void undoMovesTheNewestRunBack() throws IOException {
+        MoveJournal journal = new MoveJournal(dir.resolve("target"), s -> { });
+        FileSorter first = sorter(journal);
+        write(source.resolve("first.txt"), "1");
+        first.sortFiles(s -> { });
+        FileSorter second = sorter(journal);
+        write(source.resolve("second.pdf"), "2");
+        write(source.resolve("third.png"), "3");
+        second.setConcurrency(2);
+        second.sortFiles(s -> { });
+
+        assertArrayEquals(new int[]{2, 0}, journal.undoLast(2, s -> { }));
+        assertTrue(Files.exists(source.resolve("second.pdf")));
+        assertTrue(Files.exists(source.resolve("third.png")));
+        assertTrue(Files.exists(target.resolve("Documents/first.txt")));
+        assertEquals(1, runs(".undone").size());
+
+        assertArrayEquals(new int[]{1, 0}, journal.undoLast(2, s -> { }));
+        assertTrue(Files.exists(source.resolve("first.txt")));
+    }
+
+    @Test
+    void interruptedRunIsClosedAndOnlyRecordedMovesAreUndone() throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        // what a run killed mid-batch leaves: a.txt moved and recorded,
+        // b.txt moved without its D record, c.txt not moved, a torn line
+        write(target.resolve("Documents/a.txt"), "a");
+        write(target.resolve("Documents/b.txt"), "b");
+        write(source.resolve("c.txt"), "c");
+        String journal = "P\t" + source.resolve("a.txt").toAbsolutePath() + "\t" + target.resolve("Documents/a.txt").toAbsolutePath() + "\n"
+                + "P\t" + source.resolve("b.txt").toAbsolutePath() + "\t" + target.resolve("Documents/b.txt").toAbsolutePath() + "\n"
+                + "P\t" + source.resolve("c.txt").toAbsolutePath() + "\t" + target.resolve("Documents/c.txt").toAbsolutePath() + "\n"
+                + "D\t" + source.resolve("a.txt").toAbsolutePath() + "\t" + target.resolve("Documents/a.txt").toAbsolutePath() + "\n"
+                + "D\t" + source.resolve("b.txt").toAbsolutePath() + "\tDocu"; // torn
+        write(target.resolve(MoveJournal.DIR).resolve("run-0000000000001.log"), journal);
+
+        List<String> log = new ArrayList<>();
+        int[] result = new MoveJournal(target, s -> { }).undoLast(1, log::add);
+        assertArrayEquals(new int[]{1, 0}, result);
+        assertTrue(Files.exists(source.resolve("a.txt")));
+        assertTrue(Files.exists(target.resolve("Documents/b.txt"))); // no record, so it stays
+        assertTrue(Files.exists(source.resolve("c.txt")));
+        assertFalse(Files.exists(source.resolve("b.txt")));
+
+        List<String> lines = Files.readAllLines(runs(".undone").get(0), StandardCharsets.UTF_8);
+        assertEquals("E", lines.get(lines.size() - 1));
+    }
+
+    @Test
+    void recoveryLogsMovesThatCannotBeUndone() throws IOException {
+        source = Files.createDirectories(dir.resolve("source"));
+        target = dir.resolve("target");
+        write(target.resolve(MoveJournal.DIR).resolve("run-0000000000001.log"),
+                "P\t" + source.resolve("gone.txt").toAbsolutePath() + "\t" + target.resolve("Documents/gone.txt").toAbsolutePath() + "\n");
+
+        List<String> log = new ArrayList<>();
+        new MoveJournal(target, log::add).begin();
+        assertTrue(log.stream().anyMatch(line -> line.contains("0 move(s) recorded")));
+        assertTrue(log.stream().anyMatch(line -> line.contains("1 file(s)") && line.contains("cannot be undone")));
+    }
+
+    @Test
+    void batchOfFilesIsOneRun() throws IOException {
+        MoveJournal journal = new MoveJournal(dir.resolve("target"), s -> { });
+        FileSorter sorter = sorter(journal);
+        for (String name : Arrays.asList("a.txt", "b.txt", "c.jpg")) write(source.resolve(name), name);
+
+        assertEquals(3, sorter.sortFiles(Arrays.asList(source.resolve("a.txt"), source.resolve("b.txt"),
+                source.resolve("c.jpg")), s -> { }));
+        assertEquals(1, runs(".log").size());
+        assertArrayEquals(new int[]{3, 0}, journal.undoLast(1, s -> { }));
+    }
+}